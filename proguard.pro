@@ -2,7 +2,7 @@
 -dontobfuscate
 #-dontpreverify
 #-dontnote
--dontwarn javax.annotation.**,com.android.annotations.**,org.kxml2.**
+-dontwarn javax.annotation.**
 
 # Keep - Applications. Keep all application classes, along with their 'main'
 # methods.
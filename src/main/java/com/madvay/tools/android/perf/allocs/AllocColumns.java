@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import com.madvay.tools.android.perf.common.IntColumn;
+import com.madvay.tools.android.perf.common.StringDictionary;
+import com.madvay.tools.android.perf.common.TraceColumnarRows;
+import com.madvay.tools.android.perf.common.TracePool;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Column-wise storage of {@link AllocRow}s: {@code int[]} columns for id, size and thread,
+ * dictionary-encoded allocated class and source columns, and a trace id column.
+ * <p>
+ * With {@link LazyTraces}, the trace column may hold not-yet-decoded traces, as in
+ * {@link AllocRow#traceId}; {@link #getTraceId(int)} decodes them.
+ */
+public final class AllocColumns extends TraceColumnarRows<AllocRow> {
+
+    private final StringDictionary classNames;
+    private final StringDictionary sourceNames;
+    private final int[] ids;
+    private final int[] sizes;
+    private final int[] threads;
+    private final int[] classes;
+    private final int[] sources;
+    private final LazyTraces lazy;
+
+    AllocColumns(TracePool pool, StringDictionary classNames, StringDictionary sourceNames,
+                 int[] ids, int[] sizes, int[] threads, int[] classes, int[] traces,
+                 int[] sources, LazyTraces lazy) {
+        super(pool, traces);
+        this.lazy = lazy;
+        this.classNames = classNames;
+        this.sourceNames = sourceNames;
+        this.ids = ids;
+        this.sizes = sizes;
+        this.threads = threads;
+        this.classes = classes;
+        this.sources = sources;
+    }
+
+    /** Columns all read from a single source. */
+    static AllocColumns ofSource(String source, TracePool pool, StringDictionary classNames,
+                                 int[] ids, int[] sizes, int[] threads, int[] classes,
+                                 int[] traces) {
+        StringDictionary sourceNames = new StringDictionary();
+        int[] sources = new int[ids.length];
+        Arrays.fill(sources, sourceNames.intern(source));
+        return new AllocColumns(pool, classNames, sourceNames, ids, sizes, threads, classes,
+                traces, sources, null);
+    }
+
+    /**
+     * Concatenates the rows of all the parts, in order, merging their class, source and trace
+     * dictionaries.  Lazy traces of the parts are decoded.
+     */
+    public static AllocColumns concat(List<AllocColumns> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        int total = 0;
+        for (AllocColumns part : parts) {
+            total += part.size();
+        }
+        TracePool pool = new TracePool();
+        StringDictionary classNames = new StringDictionary();
+        StringDictionary sourceNames = new StringDictionary();
+        int[] ids = new int[total];
+        int[] sizes = new int[total];
+        int[] threads = new int[total];
+        int[] classes = new int[total];
+        int[] traces = new int[total];
+        int[] sources = new int[total];
+        int off = 0;
+        for (AllocColumns part : parts) {
+            int[] traceMap = pool.internAll(part.pool);
+            int[] classMap = remap(part.classNames, classNames);
+            int[] sourceMap = remap(part.sourceNames, sourceNames);
+            int n = part.size();
+            System.arraycopy(part.ids, 0, ids, off, n);
+            System.arraycopy(part.sizes, 0, sizes, off, n);
+            System.arraycopy(part.threads, 0, threads, off, n);
+            for (int i = 0; i < n; i++) {
+                classes[off + i] = classMap[part.classes[i]];
+                traces[off + i] = traceMap[part.getTraceId(i)];
+                sources[off + i] = sourceMap[part.sources[i]];
+            }
+            off += n;
+        }
+        return new AllocColumns(pool, classNames, sourceNames, ids, sizes, threads, classes,
+                traces, sources, null);
+    }
+
+    private static int[] remap(StringDictionary from, StringDictionary into) {
+        int[] ret = new int[from.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = into.intern(from.get(i));
+        }
+        return ret;
+    }
+
+    @Override
+    public AllocRow get(int i) {
+        return new AllocRow(ids[i], classNames.get(classes[i]), sizes[i], threads[i], pool,
+                traces[i], sourceNames.get(sources[i]), lazy);
+    }
+
+    @Override
+    public int getTraceId(int row) {
+        int t = traces[row];
+        return t >= 0 ? t : lazy.resolve(~t);
+    }
+
+    /** Whether some traces may not have been decoded yet. */
+    @Override
+    public boolean hasLazyTraces() {
+        return lazy != null;
+    }
+
+    @Override
+    public AllocColumns select(int[] rows, int count) {
+        return new AllocColumns(pool, classNames, sourceNames, gather(ids, rows, count),
+                gather(sizes, rows, count), gather(threads, rows, count),
+                gather(classes, rows, count), gather(traces, rows, count),
+                gather(sources, rows, count), lazy);
+    }
+
+    /** The rows the filter accepts, read from the header columns alone. */
+    AllocColumns filterHeaders(HeaderFilter filter) {
+        if (filter.isEmpty()) {
+            return this;
+        }
+        HeaderFilter.Bound bound = filter.bind(classNames);
+        int[] rows = new int[size()];
+        int count = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (bound.accept(ids[i], sizes[i], (short) threads[i], classes[i])) {
+                rows[count++] = i;
+            }
+        }
+        return count == rows.length ? this : select(rows, count);
+    }
+
+    @Override
+    protected AllocColumns withTraces(int[] traces) {
+        return new AllocColumns(pool, classNames, sourceNames, ids, sizes, threads, classes,
+                traces, sources, lazy);
+    }
+
+    StringDictionary getClassNames() {
+        return classNames;
+    }
+
+    int[] getIds() {
+        return ids;
+    }
+
+    int[] getSizes() {
+        return sizes;
+    }
+
+    int[] getThreads() {
+        return threads;
+    }
+
+    int[] getClasses() {
+        return classes;
+    }
+
+    int[] getTraces() {
+        return traces;
+    }
+
+    private static int[] gather(int[] col, int[] rows, int count) {
+        int[] ret = new int[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = col[rows[i]];
+        }
+        return ret;
+    }
+
+    public static final class Builder {
+        private final TracePool pool;
+        private final StringDictionary classNames = new StringDictionary();
+        private final StringDictionary sourceNames = new StringDictionary();
+        private final IntColumn ids, sizes, threads, classes, traces, sources;
+        private LazyTraces lazy;
+
+        public Builder(TracePool pool, int expectedRows) {
+            this.pool = pool;
+            ids = new IntColumn(expectedRows);
+            sizes = new IntColumn(expectedRows);
+            threads = new IntColumn(expectedRows);
+            classes = new IntColumn(expectedRows);
+            traces = new IntColumn(expectedRows);
+            sources = new IntColumn(expectedRows);
+        }
+
+        /** Appends a row, whose trace must be in this builder's pool. */
+        public Builder add(AllocRow row) {
+            ids.add(row.id);
+            sizes.add(row.bytes);
+            threads.add(row.thread);
+            classes.add(classNames.intern(row.allocatedClass));
+            traces.add(row.traceId);
+            sources.add(sourceNames.intern(row.source));
+            if (row.lazy != null) {
+                lazy = row.lazy;
+            }
+            return this;
+        }
+
+        public AllocColumns build() {
+            return new AllocColumns(pool, classNames, sourceNames, ids.toArray(),
+                    sizes.toArray(), threads.toArray(), classes.toArray(), traces.toArray(),
+                    sources.toArray(), lazy);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import com.madvay.tools.android.perf.common.StringDictionary;
+import com.madvay.tools.android.perf.common.TracePool;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A sidecar file ({@code <capture>.apatidx}) caching the parsed, columnar form of an .alloc
+ * file, so repeated queries against the same capture skip decoding it.
+ * <p>
+ * The index is keyed by the source file's length, modification time and a hash of its head
+ * and tail; a stale or unreadable index is ignored and rewritten.  It is written one row at a
+ * time, by a {@link Writer}, so the rows come first and the dictionaries they refer to after
+ * them.  Layout (big-endian):
+ * <pre>
+ *   (8b) magic "apatidx\0"
+ *   (4b) format version
+ *   (8b) source length, (8b) source mtime, (8b) source hash
+ *   (4b) row count, (8b) offset of the dictionaries, (8b) length of the index
+ *   per row, the 4b id, size, thread, class and trace
+ *   (4b) string count, then each string as a 4b UTF-8 byte length and the bytes
+ *   (4b) class name count, then the 4b string index of each
+ *   (4b) frame count, then the 4b class, method and source file (-1 if absent) string
+ *        indices and the 4b line number of each
+ *   (4b) trace count, then (trace count + 1) 4b start offsets and the 4b frame ids
+ *
+ *   The source column is not stored, since it is constant.
+ * </pre>
+ */
+public final class AllocIndexFile {
+
+    public static final String SUFFIX = ".apatidx";
+
+    private static final long MAGIC = 0x6170617469647800L; // "apatidx\0"
+    private static final int VERSION = 2;
+    private static final int HASHED_BYTES = 64 * 1024;
+    /** The offset of the row count, after the magic number, version and source key. */
+    private static final int ROW_COUNT_OFFSET = 36;
+    private static final int HEADER_BYTES = ROW_COUNT_OFFSET + 20;
+    private static final int ROW_BYTES = 20;
+
+    private AllocIndexFile() {
+    }
+
+    public static File indexFor(File source) {
+        return new File(source.getPath() + SUFFIX);
+    }
+
+    /**
+     * Whether the source has a complete index, and it is for this version of the source and of
+     * this format.  Only the index's header is read.
+     */
+    public static boolean isCurrent(File source) throws IOException {
+        File index = indexFor(source);
+        if (!index.isFile() || index.length() < HEADER_BYTES) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(index), HEADER_BYTES));
+        try {
+            return in.readLong() == MAGIC && in.readInt() == VERSION &&
+                   in.readLong() == source.length() && in.readLong() == source.lastModified() &&
+                   in.readLong() == sourceHash(source) &&
+                   in.readInt() * (long) ROW_BYTES + HEADER_BYTES == in.readLong() &&
+                   in.readLong() == index.length();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the index for the source, or returns null if there is no index, or it is for a
+     * different version of the source or of this format.  The index is only mapped once its
+     * header is known to be current, and is unmapped again before this returns, so it can be
+     * replaced.
+     *
+     * @param sourceName the name of the capture, for {@link AllocRow#source}.
+     */
+    public static AllocColumns load(File source, String sourceName) throws IOException {
+        return load(source, sourceName, HeaderFilter.ALL);
+    }
+
+    /**
+     * Like {@link #load(File, String)}, but keeps only the rows the filter accepts, testing each
+     * as it is read.
+     */
+    public static AllocColumns load(File source, String sourceName, HeaderFilter filter)
+            throws IOException {
+        if (!isCurrent(source)) {
+            return null;
+        }
+        CaptureData data = CaptureData.map(indexFor(source));
+        try {
+            StringDictionary classNames = new StringDictionary();
+            TracePool pool = new TracePool();
+            readDictionaries(data, classNames, pool);
+            HeaderFilter.Bound bound = filter.isEmpty() ? null : filter.bind(classNames);
+            int rows = data.getInt(ROW_COUNT_OFFSET);
+            int[] ids = new int[rows];
+            int[] sizes = new int[rows];
+            int[] threads = new int[rows];
+            int[] classes = new int[rows];
+            int[] traces = new int[rows];
+            int n = 0;
+            long p = HEADER_BYTES;
+            for (int i = 0; i < rows; i++, p += ROW_BYTES) {
+                int id = data.getInt(p);
+                int size = data.getInt(p + 4);
+                int thread = data.getInt(p + 8);
+                int cls = data.getInt(p + 12);
+                if (bound != null && !bound.accept(id, size, (short) thread, cls)) {
+                    continue;
+                }
+                ids[n] = id;
+                sizes[n] = size;
+                threads[n] = thread;
+                classes[n] = cls;
+                traces[n] = data.getInt(p + 16);
+                n++;
+            }
+            if (n < rows) {
+                ids = Arrays.copyOf(ids, n);
+                sizes = Arrays.copyOf(sizes, n);
+                threads = Arrays.copyOf(threads, n);
+                classes = Arrays.copyOf(classes, n);
+                traces = Arrays.copyOf(traces, n);
+            }
+            return AllocColumns.ofSource(sourceName, pool, classNames, ids, sizes, threads,
+                    classes, traces);
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * The rows of the index for the source, read one at a time as they are iterated, or null
+     * under the same conditions as {@link #load(File, String)}.  The dictionaries are read
+     * up front.  Each iterator maps the index, and unmaps it once it has given its last row.
+     */
+    public static Iterable<AllocRow> scan(final File source, final String sourceName,
+                                          HeaderFilter filter) throws IOException {
+        if (!isCurrent(source)) {
+            return null;
+        }
+        final StringDictionary classNames = new StringDictionary();
+        final TracePool pool = new TracePool();
+        CaptureData data = CaptureData.map(indexFor(source));
+        try {
+            readDictionaries(data, classNames, pool);
+        } finally {
+            data.close();
+        }
+        final String[] names = new String[classNames.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = classNames.get(i);
+        }
+        final HeaderFilter.Bound bound = filter.isEmpty() ? null : filter.bind(names);
+        return new Iterable<AllocRow>() {
+            @Override
+            public Iterator<AllocRow> iterator() {
+                final CaptureData data;
+                try {
+                    data = CaptureData.map(indexFor(source));
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not load " + indexFor(source), e);
+                }
+                final long end = HEADER_BYTES + (long) ROW_BYTES * data.getInt(ROW_COUNT_OFFSET);
+                return new AbstractIterator<AllocRow>() {
+                    private long p = HEADER_BYTES;
+
+                    @Override
+                    protected AllocRow computeNext() {
+                        for (; p < end; p += ROW_BYTES) {
+                            int id = data.getInt(p);
+                            int size = data.getInt(p + 4);
+                            int thread = data.getInt(p + 8);
+                            int cls = data.getInt(p + 12);
+                            if (bound == null || bound.accept(id, size, (short) thread, cls)) {
+                                int trace = data.getInt(p + 16);
+                                p += ROW_BYTES;
+                                return new AllocRow(id, names[cls], size, thread, pool, trace,
+                                        sourceName);
+                            }
+                        }
+                        data.close();
+                        return endOfData();
+                    }
+                };
+            }
+        };
+    }
+
+    /** Reads the class names and interns the frames and traces, which follow the rows. */
+    private static void readDictionaries(CaptureData data, StringDictionary classNames,
+                                         TracePool pool) {
+        long p = data.getLong(ROW_COUNT_OFFSET + 4);
+        String[] strings = new String[data.getInt(p)];
+        p += 4;
+        for (int i = 0; i < strings.length; i++) {
+            byte[] b = new byte[data.getInt(p)];
+            p += 4;
+            for (int c = 0; c < b.length; c++) {
+                b[c] = data.get(p++);
+            }
+            strings[i] = new String(b, Charsets.UTF_8);
+        }
+
+        int classCount = data.getInt(p);
+        p += 4;
+        for (int i = 0; i < classCount; i++, p += 4) {
+            classNames.intern(strings[data.getInt(p)]);
+        }
+
+        // Frames and traces were written in id order, and are distinct, so re-interning them
+        // in order reproduces the same ids.
+        int frameCount = data.getInt(p);
+        p += 4;
+        for (int i = 0; i < frameCount; i++, p += 16) {
+            int file = data.getInt(p + 8);
+            pool.internFrame(new StackTraceElement(strings[data.getInt(p)],
+                    strings[data.getInt(p + 4)], file < 0 ? null : strings[file],
+                    data.getInt(p + 12)));
+        }
+        int traceCount = data.getInt(p);
+        p += 4;
+        long frames = p + 4L * (traceCount + 1);
+        int[] scratch = new int[256];
+        for (int t = 0; t < traceCount; t++, p += 4) {
+            int start = data.getInt(p);
+            int len = data.getInt(p + 4) - start;
+            if (len > scratch.length) {
+                scratch = new int[len];
+            }
+            for (int i = 0; i < len; i++) {
+                scratch[i] = data.getInt(frames + 4L * (start + i));
+            }
+            pool.internTrace(scratch, len);
+        }
+    }
+
+    /**
+     * Writes the index for the source.  The columns must be exactly as parsed from the source
+     * alone.
+     */
+    public static void write(File source, AllocColumns cols) throws IOException {
+        StringDictionary classNames = cols.getClassNames();
+        int[] ids = cols.getIds();
+        int[] sizes = cols.getSizes();
+        int[] threads = cols.getThreads();
+        int[] classes = cols.getClasses();
+        Writer writer = new Writer(source);
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                writer.add(ids[i], sizes[i], threads[i], classNames.get(classes[i]),
+                        cols.getTraceId(i));
+            }
+            writer.finish(cols.getPool());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the index for a source one row at a time, so needs memory for the class names and
+     * the trace pool, but not for the rows.  The index replaces any old one when
+     * {@link #finish} is called; closing the writer without that discards what was written.
+     */
+    public static final class Writer implements Closeable {
+        private final File source;
+        private final File tmp;
+        private final DataOutputStream out;
+        private final StringDictionary classNames = new StringDictionary();
+        private int rows;
+
+        public Writer(File source) throws IOException {
+            this.source = source;
+            File index = indexFor(source);
+            tmp = File.createTempFile(index.getName(), ".tmp",
+                    index.getAbsoluteFile().getParentFile());
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try {
+                out.writeLong(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.length());
+                out.writeLong(source.lastModified());
+                out.writeLong(sourceHash(source));
+                // The row count, dictionary offset and length are filled in by finish.
+                out.writeInt(0);
+                out.writeLong(0);
+                out.writeLong(0);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /** Appends a row, whose trace is an id in the pool to be given to {@link #finish}. */
+        public void add(int id, int size, int thread, String allocatedClass, int traceId)
+                throws IOException {
+            out.writeInt(id);
+            out.writeInt(size);
+            out.writeInt(thread);
+            out.writeInt(classNames.intern(allocatedClass));
+            out.writeInt(traceId);
+            rows++;
+        }
+
+        /** Writes the dictionaries after the rows, and moves the index into place. */
+        public void finish(TracePool pool) throws IOException {
+            StringDictionary strings = new StringDictionary();
+            for (int i = 0; i < classNames.size(); i++) {
+                strings.intern(classNames.get(i));
+            }
+            for (int i = 0; i < pool.frameCount(); i++) {
+                StackTraceElement ste = pool.getFrame(i);
+                strings.intern(ste.getClassName());
+                strings.intern(ste.getMethodName());
+                if (ste.getFileName() != null) {
+                    strings.intern(ste.getFileName());
+                }
+            }
+            out.writeInt(strings.size());
+            for (int i = 0; i < strings.size(); i++) {
+                byte[] b = strings.get(i).getBytes(Charsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+
+            out.writeInt(classNames.size());
+            for (int i = 0; i < classNames.size(); i++) {
+                out.writeInt(strings.intern(classNames.get(i)));
+            }
+            out.writeInt(pool.frameCount());
+            for (int i = 0; i < pool.frameCount(); i++) {
+                StackTraceElement ste = pool.getFrame(i);
+                out.writeInt(strings.intern(ste.getClassName()));
+                out.writeInt(strings.intern(ste.getMethodName()));
+                out.writeInt(ste.getFileName() == null ? -1 :
+                             strings.intern(ste.getFileName()));
+                out.writeInt(ste.getLineNumber());
+            }
+            out.writeInt(pool.traceCount());
+            int start = 0;
+            for (int t = 0; t < pool.traceCount(); t++) {
+                out.writeInt(start);
+                start += pool.getTraceLength(t);
+            }
+            out.writeInt(start);
+            for (int t = 0; t < pool.traceCount(); t++) {
+                for (int i = 0; i < pool.getTraceLength(t); i++) {
+                    out.writeInt(pool.getFrameId(t, i));
+                }
+            }
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.seek(ROW_COUNT_OFFSET);
+                raf.writeInt(rows);
+                raf.writeLong(HEADER_BYTES + (long) ROW_BYTES * rows);
+                raf.writeLong(raf.length());
+            } finally {
+                raf.close();
+            }
+            File index = indexFor(source);
+            try {
+                Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /** Hashes the first and last {@link #HASHED_BYTES} of the file. */
+    private static long sourceHash(File source) throws IOException {
+        Hasher h = Hashing.murmur3_128().newHasher();
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            long len = raf.length();
+            byte[] chunk = new byte[(int) Math.min(len, HASHED_BYTES)];
+            raf.readFully(chunk);
+            h.putBytes(chunk);
+            raf.seek(len - chunk.length);
+            raf.readFully(chunk);
+            h.putBytes(chunk);
+        } finally {
+            raf.close();
+        }
+        return h.hash().asLong();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import com.madvay.tools.android.perf.common.FilterExpression;
+import com.madvay.tools.android.perf.common.FilterSpec;
+import com.madvay.tools.android.perf.common.IntColumn;
+import com.madvay.tools.android.perf.common.RowAdapter;
+import com.madvay.tools.android.perf.common.TracePool;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An inverted index over {@link AllocColumns}, built in memory once they are loaded.  It holds
+ * posting lists, in ascending order, of the rows of each allocated class and of each distinct
+ * stack trace, and of the traces containing each distinct frame.
+ * <p>
+ * {@link #matching} answers a filter by evaluating each comparison in it on the index, and
+ * combining the results as bitsets of rows:
+ * <ul>
+ * <li>A comparison on {@code allocated} is evaluated once per class, and one on
+ * {@code allocator}, {@code allocatorClass} or {@code allocatorMethod} once per distinct top
+ * frame.  It matches the rows of the matching classes, or of the traces with matching top
+ * frames.</li>
+ * <li>{@code stackTrace contains} a string which cannot span two frames of the joined trace
+ * is tested once per distinct frame.  It matches the rows of the traces containing a matching
+ * frame.</li>
+ * </ul>
+ * Any other comparison means the filter must be evaluated row by row instead.
+ * <p>
+ * The index describes the rows as loaded, so only answers filters applied before traces are
+ * transformed or split.
+ */
+public final class AllocInvertedIndex {
+
+    private static final RowAdapter<AllocRow> ADAPTER = new AllocRow.Adapter();
+
+    private final AllocColumns columns;
+    private final TracePool pool;
+    /** The rows of class code {@code c} are {@code classRows[classStart[c]..classStart[c+1])}. */
+    private final int[] classStart;
+    private final int[] classRows;
+    /** Likewise, the rows of each trace id. */
+    private final int[] traceStart;
+    private final int[] traceRows;
+    /** Likewise, the traces with rows which contain each frame id, each listed once. */
+    private final int[] frameStart;
+    private final int[] frameTraces;
+
+    private final Function<FilterSpec, BitSet> leaves = new Function<FilterSpec, BitSet>() {
+        @Override
+        public BitSet apply(FilterSpec input) {
+            return leaf(input);
+        }
+    };
+
+    private AllocInvertedIndex(AllocColumns columns) {
+        this.columns = columns;
+        this.pool = columns.getPool();
+        int n = columns.size();
+
+        classStart = new int[columns.getClassNames().size() + 1];
+        classRows = group(columns.getClasses(), classStart);
+
+        int[] traces = new int[n];
+        for (int i = 0; i < n; i++) {
+            traces[i] = columns.getTraceId(i);
+        }
+        traceStart = new int[pool.traceCount() + 1];
+        traceRows = group(traces, traceStart);
+
+        IntColumn frames = new IntColumn(pool.traceCount());
+        IntColumn frameTraceIds = new IntColumn(pool.traceCount());
+        int[] lastTrace = new int[pool.frameCount()];
+        Arrays.fill(lastTrace, -1);
+        for (int t = 0; t < pool.traceCount(); t++) {
+            if (traceStart[t] == traceStart[t + 1]) {
+                continue;
+            }
+            int len = pool.getTraceLength(t);
+            for (int i = 0; i < len; i++) {
+                int f = pool.getFrameId(t, i);
+                if (lastTrace[f] != t) {
+                    lastTrace[f] = t;
+                    frames.add(f);
+                    frameTraceIds.add(t);
+                }
+            }
+        }
+        frameStart = new int[pool.frameCount() + 1];
+        int[] byFrame = group(frames.toArray(), frameStart);
+        int[] traceIds = frameTraceIds.toArray();
+        frameTraces = new int[byFrame.length];
+        for (int i = 0; i < byFrame.length; i++) {
+            frameTraces[i] = traceIds[byFrame[i]];
+        }
+    }
+
+    /**
+     * Returns an index of the columns, or null if some of their traces have not been decoded
+     * yet: indexing them would decode every one.
+     */
+    public static AllocInvertedIndex of(AllocColumns columns) {
+        return columns.hasLazyTraces() ? null : new AllocInvertedIndex(columns);
+    }
+
+    /** Whether the index may be able to answer the filter; that is, given its columns. */
+    public static boolean mayAnswer(FilterExpression filter) {
+        for (String column : filter.columns()) {
+            switch (column) {
+                case "allocated":
+                case "allocator":
+                case "allocatorClass":
+                case "allocatorMethod":
+                case "stackTrace":
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The positions of the rows matching the filter, or null if it cannot be answered from the
+     * index.
+     */
+    public BitSet matching(FilterExpression filter) {
+        return filter.evaluate(leaves, columns.size());
+    }
+
+    /** The rows at the given positions. */
+    public AllocColumns select(BitSet rows) {
+        int[] selected = new int[rows.cardinality()];
+        int count = 0;
+        for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+            selected[count++] = i;
+        }
+        return columns.select(selected, count);
+    }
+
+    private BitSet leaf(FilterSpec spec) {
+        switch (spec.columnName) {
+            case "allocated":
+                return byClass(FilterExpression.of(spec).compile(ADAPTER));
+            case "allocator":
+            case "allocatorClass":
+            case "allocatorMethod":
+                return byTopFrame(FilterExpression.of(spec).compile(ADAPTER));
+            case "stackTrace":
+                return byFrame(spec);
+            default:
+                return null;
+        }
+    }
+
+    private BitSet byClass(Predicate<AllocRow> predicate) {
+        BitSet ret = new BitSet(columns.size());
+        for (int c = 0; c + 1 < classStart.length; c++) {
+            int from = classStart[c];
+            int to = classStart[c + 1];
+            // Every row of the class is the same as far as the predicate is concerned.
+            if (from < to && predicate.apply(columns.get(classRows[from]))) {
+                setAll(ret, classRows, from, to);
+            }
+        }
+        return ret;
+    }
+
+    private BitSet byTopFrame(Predicate<AllocRow> predicate) {
+        BitSet ret = new BitSet(columns.size());
+        // Per top frame id, plus 1, or 0 for empty traces: 0 if not yet tested, 1 if the
+        // predicate matches, and 2 if not.
+        byte[] tested = new byte[pool.frameCount() + 1];
+        for (int t = 0; t + 1 < traceStart.length; t++) {
+            int from = traceStart[t];
+            int to = traceStart[t + 1];
+            if (from == to) {
+                continue;
+            }
+            int top = pool.getTraceLength(t) == 0 ? 0 : pool.getFrameId(t, 0) + 1;
+            if (tested[top] == 0) {
+                tested[top] = (byte) (predicate.apply(columns.get(traceRows[from])) ? 1 : 2);
+            }
+            if (tested[top] == 1) {
+                setAll(ret, traceRows, from, to);
+            }
+        }
+        return ret;
+    }
+
+    private BitSet byFrame(FilterSpec spec) {
+        boolean negated = spec.filterType == FilterSpec.FilterType.NOT_CONTAINS;
+        if (!(negated || spec.filterType == FilterSpec.FilterType.CONTAINS) ||
+            !withinFrame(spec.rhs)) {
+            return null;
+        }
+        BitSet matchedTraces = new BitSet(pool.traceCount());
+        for (int f = 0; f + 1 < frameStart.length; f++) {
+            int from = frameStart[f];
+            int to = frameStart[f + 1];
+            if (from < to && pool.getFrame(f).toString().contains(spec.rhs)) {
+                setAll(matchedTraces, frameTraces, from, to);
+            }
+        }
+        BitSet ret = new BitSet(columns.size());
+        for (int t = matchedTraces.nextSetBit(0); t >= 0; t = matchedTraces.nextSetBit(t + 1)) {
+            setAll(ret, traceRows, traceStart[t], traceStart[t + 1]);
+        }
+        if (negated) {
+            ret.flip(0, columns.size());
+        }
+        return ret;
+    }
+
+    /**
+     * Whether every occurrence of the string in a joined trace, {@code "[f1, f2, ...]"}, lies
+     * within one frame.  An occurrence outside a frame would include one of the brackets or
+     * the comma of a separator, or start with its space.
+     */
+    private static boolean withinFrame(String s) {
+        return !s.isEmpty() && !s.startsWith(" ") && s.indexOf('[') < 0 && s.indexOf(']') < 0 &&
+               s.indexOf(',') < 0;
+    }
+
+    private static void setAll(BitSet bits, int[] postings, int from, int to) {
+        for (int i = from; i < to; i++) {
+            bits.set(postings[i]);
+        }
+    }
+
+    /**
+     * Sorts positions by key, with a counting sort.
+     *
+     * @param start set to where each key's positions start in the result, with one extra
+     *              element for the end; its length is the number of keys, plus 1.
+     * @return the positions of {@code keys}, ascending within each key.
+     */
+    private static int[] group(int[] keys, int[] start) {
+        for (int key : keys) {
+            start[key + 1]++;
+        }
+        for (int k = 1; k < start.length; k++) {
+            start[k] += start[k - 1];
+        }
+        int[] fill = Arrays.copyOf(start, start.length - 1);
+        int[] ret = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ret[fill[keys[i]]++] = i;
+        }
+        return ret;
+    }
+}
@@ -18,6 +18,7 @@
 package com.madvay.tools.android.perf.allocs;
 
 import com.madvay.tools.android.perf.common.RowAdapter;
+import com.madvay.tools.android.perf.common.TracePool;
 import com.madvay.tools.android.perf.common.TraceTransformableRow;
 
 import com.google.common.collect.ImmutableList;
@@ -25,48 +26,78 @@ import com.google.common.collect.ImmutableList;
 import java.util.List;
 
 /**
- *
+ * A single allocation.  The stack trace is held as an id into a shared {@link TracePool}, and
+ * is only resolved to {@link StackTraceElement}s when asked for.  If the row was decoded with
+ * lazy traces, the trace is not even decoded until then.
  */
 public class AllocRow extends TraceTransformableRow {
     public final int id;
     public final String allocatedClass;
     public final int bytes;
     public final int thread;
-    public final List<StackTraceElement> stackTrace;
-    public final StackTraceElement allocator;
+    public final TracePool pool;
+    /** The capture this allocation was read from. */
+    public final String source;
+    /**
+     * The trace id in {@link #pool}, or if the trace has not been decoded yet, the bitwise
+     * complement of its entry index in {@link #lazy}.
+     */
+    final int traceId;
+    final LazyTraces lazy;
 
-    public AllocRow(int id, String allocatedClass, int bytes, int thread,
-                    StackTraceElement[] stackTrace) {
-        this.id = id;
-        this.allocatedClass = allocatedClass;
-        this.bytes = bytes;
-        this.thread = thread;
-        this.stackTrace = ImmutableList.copyOf(stackTrace);
-        this.allocator = this.stackTrace.isEmpty() ? null : this.stackTrace.get(0);
+    public AllocRow(int id, String allocatedClass, int bytes, int thread, TracePool pool,
+                    int traceId, String source) {
+        this(id, allocatedClass, bytes, thread, pool, traceId, source, null);
     }
 
-    public AllocRow(int id, String allocatedClass, int bytes, int thread,
-                    List<StackTraceElement> stackTrace) {
+    AllocRow(int id, String allocatedClass, int bytes, int thread, TracePool pool, int traceId,
+             String source, LazyTraces lazy) {
         this.id = id;
         this.allocatedClass = allocatedClass;
         this.bytes = bytes;
         this.thread = thread;
-        this.stackTrace = ImmutableList.copyOf(stackTrace);
-        this.allocator = this.stackTrace.isEmpty() ? null : this.stackTrace.get(0);
+        this.pool = pool;
+        this.traceId = traceId;
+        this.source = source;
+        this.lazy = lazy;
+    }
+
+    /** The id of the stack trace in {@link #pool}, decoding the trace if needed. */
+    public int getTraceId() {
+        return traceId >= 0 ? traceId : lazy.resolve(~traceId);
+    }
+
+    public List<StackTraceElement> getStackTrace() {
+        return pool.getTrace(getTraceId());
+    }
+
+    /** The top of the stack trace, or null if the trace is empty. */
+    public StackTraceElement getAllocator() {
+        return traceId >= 0 ? pool.getTopFrame(traceId) : lazy.getAllocator(~traceId);
     }
 
     @Override
     public List<StackTraceElement> getTransformableTrace() {
-        return stackTrace;
+        return getStackTrace();
     }
 
     static final class Adapter extends RowAdapter<AllocRow> {
+        static final int ID = 0;
+        static final int ALLOCATED = 1;
+        static final int SIZE = 2;
+        static final int THREAD = 3;
+        static final int STACK_TRACE = 4;
+        static final int ALLOCATOR = 5;
+        static final int ALLOCATOR_CLASS = 6;
+        static final int ALLOCATOR_METHOD = 7;
+        static final int SOURCE = 8;
 
         Adapter() {
             super(ImmutableList.of("id", "allocated", "size", "thread", "stackTrace", "allocator",
-                    "allocatorClass", "allocatorMethod"), ImmutableList
+                    "allocatorClass", "allocatorMethod", "source"), ImmutableList
                     .of(CoerceType.NUMERIC, CoerceType.TEXT, CoerceType.NUMERIC, CoerceType.NUMERIC,
-                            CoerceType.TEXT, CoerceType.TEXT, CoerceType.TEXT, CoerceType.TEXT));
+                            CoerceType.TEXT, CoerceType.TEXT, CoerceType.TEXT, CoerceType.TEXT,
+                            CoerceType.TEXT));
         }
 
         @Override
@@ -81,14 +112,105 @@ public class AllocRow extends TraceTransformableRow {
                 case "thread":
                     return row.thread;
                 case "stackTrace":
-                    return row.stackTrace;
-                case "allocator":
-                    return row.allocator == null ? "{none}" : row.allocator;
-                case "allocatorClass":
-                    return row.allocator == null ? "{none}" : row.allocator.getClassName();
-                case "allocatorMethod":
-                    return row.allocator == null ? "{none}" :
-                           (row.allocator.getClassName() + "." + row.allocator.getMethodName());
+                    return row.getStackTrace();
+                case "allocator": {
+                    StackTraceElement allocator = row.getAllocator();
+                    return allocator == null ? "{none}" : allocator;
+                }
+                case "allocatorClass": {
+                    StackTraceElement allocator = row.getAllocator();
+                    return allocator == null ? "{none}" : allocator.getClassName();
+                }
+                case "allocatorMethod": {
+                    StackTraceElement allocator = row.getAllocator();
+                    return allocator == null ? "{none}" :
+                           (allocator.getClassName() + "." + allocator.getMethodName());
+                }
+                case "source":
+                    return row.source;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        @Override
+        public int columnCost(int handle) {
+            switch (handle) {
+                case STACK_TRACE:
+                    // Resolves, and joins into one string, the whole trace.
+                    return 20;
+                case ALLOCATOR:
+                case ALLOCATOR_METHOD:
+                    return 3;
+                case ALLOCATOR_CLASS:
+                    return 2;
+                default:
+                    return 1;
+            }
+        }
+
+        @Override
+        public Object getValueKey(AllocRow row, int handle) {
+            switch (handle) {
+                case ALLOCATED:
+                    return row.allocatedClass;
+                case STACK_TRACE:
+                    // Each trace id of a pool resolves to the same list every time.
+                    return row.getStackTrace();
+                case ALLOCATOR:
+                case ALLOCATOR_CLASS:
+                case ALLOCATOR_METHOD:
+                    // Frames are interned in the pool.
+                    return row.getAllocator();
+                case SOURCE:
+                    return row.source;
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public long getLong(AllocRow row, int handle) {
+            switch (handle) {
+                case ID:
+                    return row.id;
+                case SIZE:
+                    return row.bytes;
+                case THREAD:
+                    return row.thread;
+                default:
+                    throw new IllegalArgumentException("Not numeric: " + columns.get(handle));
+            }
+        }
+
+        @Override
+        public String getString(AllocRow row, int handle) {
+            switch (handle) {
+                case ID:
+                    return Integer.toString(row.id);
+                case ALLOCATED:
+                    return row.allocatedClass;
+                case SIZE:
+                    return Integer.toString(row.bytes);
+                case THREAD:
+                    return Integer.toString(row.thread);
+                case STACK_TRACE:
+                    return row.getStackTrace().toString();
+                case ALLOCATOR: {
+                    StackTraceElement allocator = row.getAllocator();
+                    return allocator == null ? "{none}" : allocator.toString();
+                }
+                case ALLOCATOR_CLASS: {
+                    StackTraceElement allocator = row.getAllocator();
+                    return allocator == null ? "{none}" : allocator.getClassName();
+                }
+                case ALLOCATOR_METHOD: {
+                    StackTraceElement allocator = row.getAllocator();
+                    return allocator == null ? "{none}" :
+                           (allocator.getClassName() + "." + allocator.getMethodName());
+                }
+                case SOURCE:
+                    return row.source;
                 default:
                     throw new IllegalArgumentException();
             }
@@ -17,9 +17,12 @@
 
 package com.madvay.tools.android.perf.allocs;
 
+import com.madvay.tools.android.perf.common.CompiledTraceTransform;
 import com.madvay.tools.android.perf.common.RowAdapter;
 import com.madvay.tools.android.perf.common.TraceTransformableTable;
 
+import com.google.common.collect.ImmutableList;
+
 import java.util.List;
 
 /**
@@ -33,6 +36,14 @@ public class AllocTable extends TraceTransformableTable<AllocRow> {
         super(l);
     }
 
+    /**
+     * A table with no rows, e.g. to describe the rows pushed through a
+     * {@link com.madvay.tools.android.perf.common.RowPipeline}.
+     */
+    public AllocTable() {
+        this(ImmutableList.<AllocRow>of());
+    }
+
     @Override
     public RowAdapter<AllocRow> getAdapter() {
         return ADAPTER;
@@ -40,6 +51,13 @@ public class AllocTable extends TraceTransformableTable<AllocRow> {
 
     @Override
     protected AllocRow newRowWithTrace(AllocRow input, List<StackTraceElement> trace) {
-        return new AllocRow(input.id, input.allocatedClass, input.bytes, input.thread, trace);
+        return new AllocRow(input.id, input.allocatedClass, input.bytes, input.thread,
+                input.pool, input.pool.internTrace(trace), input.source);
+    }
+
+    @Override
+    protected AllocRow newRowWithTrace(AllocRow input, CompiledTraceTransform transform) {
+        return new AllocRow(input.id, input.allocatedClass, input.bytes, input.thread,
+                input.pool, transform.apply(input.pool, input.getTraceId()), input.source);
     }
 }
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Portions derived from AllocationsParser.java:
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import com.madvay.tools.android.perf.common.LongIntMap;
+import com.madvay.tools.android.perf.common.TracePool;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Streaming decoder for the DDMS .alloc format.
+ * <p>
+ * Reads the string tables once, then decodes one entry per call to {@link #next()} directly
+ * out of the (typically memory-mapped) {@link CaptureData}, without building an intermediate
+ * array of all allocations.  Frames and traces are interned into a {@link TracePool} as they
+ * are decoded, so a repeated frame costs a hash lookup rather than a new
+ * {@link StackTraceElement}.
+ * <p>
+ * For parallel decoding, {@link #scanEntryOffsets()} quickly finds where each entry starts, and
+ * {@link #forEntries} creates decoders for disjoint ranges of entries which share this one's
+ * string tables but nothing mutable.
+ * <p>
+ * Message format:
+ * <pre>
+ *   Message header (all values big-endian):
+ *     (1b) message header len (to allow future expansion); includes itself
+ *     (1b) entry header len
+ *     (1b) stack frame len
+ *     (2b) number of entries
+ *     (4b) offset to string table from start of message
+ *     (2b) number of class name strings
+ *     (2b) number of method name strings
+ *     (2b) number of source file name strings
+ *   For each entry:
+ *     (4b) total allocation size
+ *     (2b) thread id
+ *     (2b) allocated object's class name index
+ *     (1b) stack depth
+ *     For each stack frame:
+ *       (2b) method's class name
+ *       (2b) method name
+ *       (2b) method source file
+ *       (2b) line number, clipped to 32767; -2 if native; -1 if no source
+ *   (xb) class name strings
+ *   (xb) method name strings
+ *   (xb) source file strings
+ *
+ *   Strings are sent as a 4-byte length followed by UTF-16 data.
+ * </pre>
+ */
+public final class AllocationsDecoder extends AbstractIterator<AllocRow> {
+
+    private final CaptureData data;
+
+    private final int messageHdrLen, entryHdrLen, stackFrameLen;
+    private final int numEntries;
+
+    private final String[] classNames;
+    private final String[] methodNames;
+    private final String[] fileNames;
+
+    private final String source;
+    private final TracePool pool;
+    /** Raw (class, method, file, line) frame key to frame id in {@link #pool}. */
+    private final LongIntMap frameIds = new LongIntMap(1024);
+    private final int[] traceScratch = new int[256];
+
+    /** Absolute position of the next entry in {@link #data}. */
+    private long pos;
+    /** Index of the next entry to decode. */
+    private int entry;
+    /** Index just past the last entry to decode. */
+    private final int endEntry;
+    /** If non-null, traces are not decoded by {@link #next()}, but recorded here. */
+    private LazyTraces lazy;
+    private HeaderFilter filter = HeaderFilter.ALL;
+    /** {@link #filter} bound to {@link #classNames}, or null if it accepts every entry. */
+    private HeaderFilter.Bound boundFilter;
+
+    /**
+     * @param data the contents of an .alloc file.
+     * @param source the name of the capture, for {@link AllocRow#source}.
+     * @param pool the pool into which to intern the decoded stack traces.
+     */
+    public AllocationsDecoder(CaptureData data, String source, TracePool pool) {
+        this.data = data;
+        this.source = source;
+        this.pool = pool;
+        messageHdrLen = data.get(0) & 0xff;
+        entryHdrLen = data.get(1) & 0xff;
+        stackFrameLen = data.get(2) & 0xff;
+        numEntries = data.getShort(3) & 0xffff;
+        // Unsigned, so that the string tables may start anywhere in a file of up to 4GB.
+        long offsetToStrings = data.getInt(5) & 0xffffffffL;
+        classNames = new String[data.getShort(9) & 0xffff];
+        methodNames = new String[data.getShort(11) & 0xffff];
+        fileNames = new String[data.getShort(13) & 0xffff];
+
+        long p = offsetToStrings;
+        p = readStringTable(data, p, classNames);
+        p = readStringTable(data, p, methodNames);
+        readStringTable(data, p, fileNames);
+
+        pos = messageHdrLen;
+        entry = 0;
+        endEntry = numEntries;
+    }
+
+    private AllocationsDecoder(AllocationsDecoder header, int firstEntry, int endEntry,
+                               long firstEntryOffset, TracePool pool) {
+        this.data = header.data;
+        this.source = header.source;
+        this.pool = pool;
+        messageHdrLen = header.messageHdrLen;
+        entryHdrLen = header.entryHdrLen;
+        stackFrameLen = header.stackFrameLen;
+        numEntries = header.numEntries;
+        classNames = header.classNames;
+        methodNames = header.methodNames;
+        fileNames = header.fileNames;
+        pos = firstEntryOffset;
+        entry = firstEntry;
+        this.endEntry = endEntry;
+        filterEntries(header.filter);
+    }
+
+    /**
+     * Returns a decoder for entries {@code [firstEntry, endEntry)} only, interning into the given
+     * pool.  It may be used concurrently with this decoder and others created by this method.
+     * It skips the entries this one's {@link #filterEntries filter} rejects.
+     *
+     * @param firstEntryOffset the position of {@code firstEntry}, per {@link #scanEntryOffsets()}
+     */
+    public AllocationsDecoder forEntries(int firstEntry, int endEntry, long firstEntryOffset,
+                                         TracePool pool) {
+        return new AllocationsDecoder(this, firstEntry, endEntry, firstEntryOffset, pool);
+    }
+
+    /**
+     * Returns the position of every entry in the data, reading only each entry's stack depth.
+     */
+    public long[] scanEntryOffsets() {
+        long[] offsets = new long[numEntries];
+        long p = messageHdrLen;
+        for (int i = 0; i < numEntries; i++) {
+            offsets[i] = p;
+            p += entryHdrLen + (data.get(p + 8) & 0xff) * stackFrameLen;
+        }
+        return offsets;
+    }
+
+    public TracePool getPool() {
+        return pool;
+    }
+
+    /**
+     * Makes {@link #next()} decode only each entry's top frame, and defer the rest of the trace
+     * until asked for through the returned {@link LazyTraces}.  Must be called before the first
+     * call to {@link #next()}.
+     */
+    LazyTraces deferTraces() {
+        lazy = new LazyTraces(this);
+        return lazy;
+    }
+
+    /**
+     * Makes {@link #next()} skip the entries the filter rejects, without decoding their traces.
+     * Must be called before the first call to {@link #next()}.
+     */
+    public void filterEntries(HeaderFilter filter) {
+        this.filter = filter;
+        boundFilter = filter.isEmpty() ? null : filter.bind(classNames);
+    }
+
+    /** Decodes and interns the trace of the entry at the given position. */
+    int decodeTrace(long entryOffset) {
+        int stackDepth = data.get(entryOffset + 8) & 0xff;
+        long p = entryOffset + entryHdrLen;
+        for (int i = 0; i < stackDepth; i++) {
+            traceScratch[i] = internFrame(data.getLong(p));
+            p += stackFrameLen;
+        }
+        return pool.internTrace(traceScratch, stackDepth);
+    }
+
+    /** The total number of entries in the file. */
+    public int getEntryCount() {
+        return numEntries;
+    }
+
+    @Override
+    protected AllocRow computeNext() {
+        long p = pos;
+        int totalSize, classNameIndex, stackDepth;
+        short threadId;
+        while (true) {
+            if (entry >= endEntry) {
+                return endOfData();
+            }
+            totalSize = data.getInt(p);
+            threadId = data.getShort(p + 4);
+            classNameIndex = data.getShort(p + 6) & 0xffff;
+            stackDepth = data.get(p + 8) & 0xff;
+            // Entries are sent in reverse order of allocation.
+            if (boundFilter == null ||
+                boundFilter.accept(numEntries - entry, totalSize, threadId, classNameIndex)) {
+                break;
+            }
+            p += entryHdrLen + stackDepth * stackFrameLen;
+            entry++;
+        }
+
+        int traceId;
+        if (lazy == null) {
+            traceId = decodeTrace(p);
+        } else {
+            int allocator = stackDepth == 0 ? -1 : internFrame(data.getLong(p + entryHdrLen));
+            lazy.record(entry, p, allocator);
+            traceId = ~entry;
+        }
+        pos = p + entryHdrLen + stackDepth * stackFrameLen;
+
+        int allocNumber = numEntries - entry;
+        entry++;
+        return new AllocRow(allocNumber, classNames[classNameIndex], totalSize, threadId, pool,
+                traceId, source, lazy);
+    }
+
+    /**
+     * @param rawFrame the 8 bytes of a frame: class name, method name and source file indices,
+     *                 then the line number.
+     */
+    private int internFrame(long rawFrame) {
+        int id = frameIds.get(rawFrame, -1);
+        if (id < 0) {
+            StackTraceElement ste = new StackTraceElement(
+                    classNames[(int) (rawFrame >>> 48) & 0xffff],
+                    methodNames[(int) (rawFrame >>> 32) & 0xffff],
+                    fileNames[(int) (rawFrame >>> 16) & 0xffff], (short) rawFrame);
+            id = pool.internFrame(ste);
+            frameIds.put(rawFrame, id);
+        }
+        return id;
+    }
+
+    /**
+     * Reads a string table, a serial collection of strings, each of which is a
+     * four-byte length followed by UTF-16 data.
+     *
+     * @return the position just past the table
+     */
+    private static long readStringTable(CaptureData data, long p, String[] strings) {
+        for (int i = 0; i < strings.length; i++) {
+            int len = data.getInt(p);
+            p += 4;
+            char[] chars = new char[len];
+            for (int c = 0; c < len; c++) {
+                chars[c] = data.getChar(p);
+                p += 2;
+            }
+            strings[i] = descriptorToDot(new String(chars));
+        }
+        return p;
+    }
+
+    static String descriptorToDot(String str) {
+        // count the number of arrays.
+        int array = 0;
+        while (str.startsWith("[")) {
+            str = str.substring(1);
+            array++;
+        }
+
+        int len = str.length();
+
+        // strip off leading 'L' and trailing ';' if appropriate
+        if (len >= 2 && str.charAt(0) == 'L' && str.charAt(len - 1) == ';') {
+            str = str.substring(1, len - 1).replace('/', '.');
+        } else {
+            // convert the basic types
+            switch (str) {
+                case "C":
+                    str = "char";
+                    break;
+                case "B":
+                    str = "byte";
+                    break;
+                case "Z":
+                    str = "boolean";
+                    break;
+                case "S":
+                    str = "short";
+                    break;
+                case "I":
+                    str = "int";
+                    break;
+                case "J":
+                    str = "long";
+                    break;
+                case "F":
+                    str = "float";
+                    break;
+                case "D":
+                    str = "double";
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // now add the array part
+        StringBuilder sb = new StringBuilder(str);
+        for (int a = 0; a < array; a++) {
+            sb.append("[]");
+        }
+        return sb.toString();
+    }
+}
@@ -19,18 +19,26 @@
 
 package com.madvay.tools.android.perf.allocs;
 
-import com.android.ddmlib.AllocationInfo;
-import com.android.ddmlib.AllocationsParser;
+import com.madvay.tools.android.perf.common.TracePool;
 
+import com.google.common.collect.Iterables;
+
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
 
 public class AllocationsParserAdapter {
     public static ByteBuffer mapFile(File f, long offset, ByteOrder byteOrder) throws IOException {
@@ -46,22 +54,367 @@ public class AllocationsParserAdapter {
         }
     }
 
-    public static List<AllocRow> parse(ByteBuffer data) {
-        AllocationInfo[] orig = AllocationsParser.parse(data);
-        List<AllocRow> ret = new ArrayList<>();
-        for (AllocationInfo a : orig) {
-            ret.add(new AllocRow(a.getAllocNumber(), a.getAllocatedClass(), a.getSize(),
-                    a.getThreadId(), a.getStackTrace()));
+    /** Files with fewer entries than this are decoded on the calling thread. */
+    private static final int MIN_PARALLEL_ENTRIES = 4096;
+    private static final int MIN_SHARD_ENTRIES = 1024;
+
+    private static ForkJoinPool forkJoinPool;
+
+    private static synchronized ForkJoinPool forkJoinPool() {
+        if (forkJoinPool == null) {
+            forkJoinPool = new ForkJoinPool();
+        }
+        return forkJoinPool;
+    }
+
+    /** Runs the task in the current fork-join pool, or in the shared one. */
+    private static <V> V invoke(ForkJoinTask<V> task) {
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : forkJoinPool().invoke(task);
+    }
+
+    public static AllocColumns parse(ByteBuffer data, String source) {
+        return parse(CaptureData.wrap(data), source);
+    }
+
+    /** Decodes every entry of the capture, leaving nothing that refers to {@code data}. */
+    public static AllocColumns parse(CaptureData data, String source) {
+        return parse(data, source, HeaderFilter.ALL);
+    }
+
+    /**
+     * Decodes the entries of the capture which the filter accepts, leaving nothing that refers
+     * to {@code data}.  Rejected entries are skipped without decoding their traces.
+     */
+    public static AllocColumns parse(CaptureData data, String source, HeaderFilter filter) {
+        final AllocationsDecoder decoder = new AllocationsDecoder(data, source, new TracePool());
+        decoder.filterEntries(filter);
+        final int n = decoder.getEntryCount();
+        int parallelism = forkJoinPool().getParallelism();
+        if (n < MIN_PARALLEL_ENTRIES || parallelism < 2) {
+            return decode(decoder, n);
+        }
+        // Find where every entry starts, then decode shards of entries in parallel, each into
+        // its own pool and columns, and concatenate them in order.
+        final long[] offsets = decoder.scanEntryOffsets();
+        final int shardSize = Math.max(MIN_SHARD_ENTRIES, n / (4 * parallelism) + 1);
+        return invoke(new RecursiveTask<AllocColumns>() {
+            @Override
+            protected AllocColumns compute() {
+                List<ForkJoinTask<AllocColumns>> shards = new ArrayList<>();
+                for (int start = 0; start < n; start += shardSize) {
+                    final int from = start;
+                    final int to = Math.min(n, start + shardSize);
+                    shards.add(new RecursiveTask<AllocColumns>() {
+                        @Override
+                        protected AllocColumns compute() {
+                            return decode(decoder.forEntries(from, to, offsets[from],
+                                    new TracePool()), to - from);
+                        }
+                    });
+                }
+                List<AllocColumns> parts = new ArrayList<>();
+                for (ForkJoinTask<AllocColumns> shard : invokeAll(shards)) {
+                    parts.add(shard.join());
+                }
+                return AllocColumns.concat(parts);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #parse(CaptureData, String)}, but decodes only the allocator of each entry up
+     * front.  The rest of each trace is decoded from {@code data} when first asked for, so it
+     * must stay open for as long as the rows are used.
+     */
+    public static AllocColumns parseLazily(CaptureData data, String source) {
+        return parseLazily(data, source, HeaderFilter.ALL);
+    }
+
+    public static AllocColumns parseLazily(CaptureData data, String source,
+                                           HeaderFilter filter) {
+        AllocationsDecoder decoder = new AllocationsDecoder(data, source, new TracePool());
+        decoder.deferTraces();
+        decoder.filterEntries(filter);
+        return decode(decoder, decoder.getEntryCount());
+    }
+
+    private static AllocColumns decode(AllocationsDecoder decoder, int expectedRows) {
+        AllocColumns.Builder ret = new AllocColumns.Builder(decoder.getPool(), expectedRows);
+        while (decoder.hasNext()) {
+            ret.add(decoder.next());
+        }
+        return ret.build();
+    }
+
+    /** The path which means stdin. */
+    public static final String STDIN = "-";
+
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Decodes a capture from the stream in a single forward pass, without holding the raw
+     * capture in memory.  If the stream is gzip-compressed, it is decompressed as it is read.
+     * The stream is not closed.
+     */
+    public static AllocColumns parse(InputStream in, String source) throws IOException {
+        return parse(in, source, HeaderFilter.ALL);
+    }
+
+    /** Like {@link #parse(InputStream, String)}, but keeps only the entries the filter accepts. */
+    public static AllocColumns parse(InputStream in, String source, HeaderFilter filter)
+            throws IOException {
+        InputStream buffered = new BufferedInputStream(in, STREAM_BUFFER_SIZE);
+        if (isGzip(buffered)) {
+            buffered = new BufferedInputStream(
+                    new GZIPInputStream(buffered, STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE);
+        }
+        return AllocationsStreamDecoder.decode(buffered, source, filter);
+    }
+
+    /** Whether the stream starts with the gzip magic number.  The stream is not advanced. */
+    private static boolean isGzip(InputStream in) throws IOException {
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        return b0 == (GZIPInputStream.GZIP_MAGIC & 0xff) &&
+               b1 == (GZIPInputStream.GZIP_MAGIC >>> 8);
+    }
+
+    private static boolean isGzip(File f) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f), 2);
+        try {
+            return isGzip(in);
+        } finally {
+            in.close();
         }
-        return ret;
     }
 
     public static List<AllocRow> parse(String allocFilePath) {
+        return parse(allocFilePath, false, false);
+    }
+
+    /**
+     * @param useIndex whether to load the parsed file from its {@link AllocIndexFile}, if that is
+     *                 up to date.  The index is not written here, so that the file can be
+     *                 decoded lazily and filtered; see {@link #writeIndexes}.
+     * @param lazyTraces whether to defer decoding traces, per
+     *                   {@link #parseLazily(CaptureData, String)}, if the file is not indexed.
+     *                   <p>
+     *                   {@link #STDIN} and gzip-compressed files are decoded as streams, per
+     *                   {@link #parse(InputStream, String)}, so their traces are never lazy.
+     *                   Stdin is never indexed.
+     */
+    public static AllocColumns parse(String allocFilePath, boolean useIndex,
+                                     boolean lazyTraces) {
+        return parse(allocFilePath, useIndex, lazyTraces, HeaderFilter.ALL);
+    }
+
+    /**
+     * Like {@link #parse(String, boolean, boolean)}, but keeps only the entries the filter
+     * accepts.  The filter is evaluated as entries are decoded or read from the index, and
+     * rejected entries of a capture are skipped without decoding their traces.
+     */
+    public static AllocColumns parse(String allocFilePath, boolean useIndex, boolean lazyTraces,
+                                     HeaderFilter filter) {
+        if (allocFilePath.equals(STDIN)) {
+            try {
+                return parse(System.in, allocFilePath, filter);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read stdin", e);
+            }
+        }
+        File f = new File(allocFilePath);
+        if (useIndex) {
+            try {
+                AllocColumns indexed = AllocIndexFile.load(f, allocFilePath, filter);
+                if (indexed != null) {
+                    return indexed;
+                }
+            } catch (IOException | RuntimeException e) {
+                // A truncated or otherwise unreadable index; decode the file instead.
+            }
+        }
         try {
-            ByteBuffer buf = mapFile(new File(allocFilePath), 0, ByteOrder.BIG_ENDIAN);
-            return parse(buf);
+            if (isGzip(f)) {
+                InputStream in = new FileInputStream(f);
+                try {
+                    return parse(in, allocFilePath, filter);
+                } finally {
+                    in.close();
+                }
+            }
+            return parseMapped(f, allocFilePath, lazyTraces, filter);
         } catch (IOException e) {
             throw new RuntimeException("Could not load " + allocFilePath, e);
         }
     }
+
+    /**
+     * (Re)writes the {@link AllocIndexFile} of each file which does not have an up to date one,
+     * decoding the file again in full.  This is meant to run once a query's results are out, so
+     * that the query itself can decode lazily and skip the entries it filters out.  Stdin is
+     * never indexed, and failures are ignored, since the index is only a cache.
+     */
+    public static void writeIndexes(List<String> allocFilePaths) {
+        for (String path : allocFilePaths) {
+            if (path.equals(STDIN)) {
+                continue;
+            }
+            File f = new File(path);
+            try {
+                if (!AllocIndexFile.isCurrent(f)) {
+                    writeIndex(f, path);
+                }
+            } catch (IOException e) {
+                // E.g. the directory may be read-only.
+            }
+        }
+    }
+
+    private static void writeIndex(File f, String allocFilePath) throws IOException {
+        if (isGzip(f)) {
+            InputStream in = new FileInputStream(f);
+            try {
+                AllocIndexFile.write(f, parse(in, allocFilePath));
+            } finally {
+                in.close();
+            }
+            return;
+        }
+        // Straight from the decoder into the index, without building columns.
+        CaptureData data = CaptureData.map(f);
+        try {
+            AllocationsDecoder decoder =
+                    new AllocationsDecoder(data, allocFilePath, new TracePool());
+            AllocIndexFile.Writer writer = new AllocIndexFile.Writer(f);
+            try {
+                while (decoder.hasNext()) {
+                    AllocRow row = decoder.next();
+                    writer.add(row.id, row.bytes, row.thread, row.allocatedClass, row.traceId);
+                }
+                writer.finish(decoder.getPool());
+            } finally {
+                writer.close();
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    private static AllocColumns parseMapped(File f, String allocFilePath, boolean lazyTraces,
+                                            HeaderFilter filter) throws IOException {
+        CaptureData data = CaptureData.map(f);
+        if (lazyTraces) {
+            // The mapping is needed until the last trace is decoded, so it is left to the GC.
+            return parseLazily(data, allocFilePath, filter);
+        }
+        try {
+            return parse(data, allocFilePath, filter);
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * The rows of the files, in order, for a single pass such as a
+     * {@link com.madvay.tools.android.perf.common.RowPipeline}.
+     * <p>
+     * Each plain capture is read row by row as the rows are iterated, rather than into columns,
+     * so a pass which does not keep the rows needs memory independent of their number.  With
+     * {@code useIndex}, the rows come from the capture's {@link AllocIndexFile} if that is up to
+     * date, and otherwise are decoded entry by entry from the capture, which stays mapped until
+     * garbage collected.  Stdin and gzip-compressed files are parsed per
+     * {@link #parse(String, boolean, boolean, HeaderFilter)}.
+     * <p>
+     * Only the rows the filter accepts are given.
+     */
+    public static Iterable<AllocRow> scan(List<String> allocFilePaths, boolean useIndex,
+                                          boolean lazyTraces, HeaderFilter filter) {
+        if (allocFilePaths.size() == 1) {
+            return scan(allocFilePaths.get(0), useIndex, lazyTraces, filter);
+        }
+        List<Iterable<AllocRow>> parts = new ArrayList<>();
+        for (String path : allocFilePaths) {
+            parts.add(scan(path, useIndex, lazyTraces, filter));
+        }
+        return Iterables.concat(parts);
+    }
+
+    private static Iterable<AllocRow> scan(final String allocFilePath, boolean useIndex,
+                                           final boolean lazyTraces, final HeaderFilter filter) {
+        final File f = new File(allocFilePath);
+        try {
+            if (allocFilePath.equals(STDIN) || isGzip(f)) {
+                return parse(allocFilePath, useIndex, false, filter);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load " + allocFilePath, e);
+        }
+        if (useIndex) {
+            try {
+                Iterable<AllocRow> indexed = AllocIndexFile.scan(f, allocFilePath, filter);
+                if (indexed != null) {
+                    return indexed;
+                }
+            } catch (IOException | RuntimeException e) {
+                // A truncated or otherwise unreadable index; decode the file instead.
+            }
+        }
+        return new Iterable<AllocRow>() {
+            @Override
+            public Iterator<AllocRow> iterator() {
+                try {
+                    AllocationsDecoder decoder = new AllocationsDecoder(CaptureData.map(f),
+                            allocFilePath, new TracePool());
+                    if (lazyTraces) {
+                        decoder.deferTraces();
+                    }
+                    decoder.filterEntries(filter);
+                    return decoder;
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not load " + allocFilePath, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Parses the files concurrently on a fork-join pool, and concatenates their rows in the
+     * given order.  Each row's {@link AllocRow#source} is the path it was read from.
+     * <p>
+     * Lazy traces are only used for a single file, since merging the files' trace dictionaries
+     * would decode every trace anyway.
+     */
+    public static AllocColumns parse(List<String> allocFilePaths, boolean useIndex,
+                                     boolean lazyTraces) {
+        return parse(allocFilePaths, useIndex, lazyTraces, HeaderFilter.ALL);
+    }
+
+    /** Like {@link #parse(List, boolean, boolean)}, but keeps only the rows the filter accepts. */
+    public static AllocColumns parse(List<String> allocFilePaths, final boolean useIndex,
+                                     boolean lazyTraces, final HeaderFilter filter) {
+        if (allocFilePaths.size() == 1) {
+            return parse(allocFilePaths.get(0), useIndex, lazyTraces, filter);
+        }
+        final List<ForkJoinTask<AllocColumns>> tasks = new ArrayList<>();
+        for (final String path : allocFilePaths) {
+            tasks.add(new RecursiveTask<AllocColumns>() {
+                @Override
+                protected AllocColumns compute() {
+                    return parse(path, useIndex, false, filter);
+                }
+            });
+        }
+        return invoke(new RecursiveTask<AllocColumns>() {
+            @Override
+            protected AllocColumns compute() {
+                List<AllocColumns> parts = new ArrayList<>();
+                for (ForkJoinTask<AllocColumns> part : invokeAll(tasks)) {
+                    parts.add(part.join());
+                }
+                return AllocColumns.concat(parts);
+            }
+        });
+    }
 }
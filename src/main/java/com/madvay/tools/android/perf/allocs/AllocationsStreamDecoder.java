@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import com.madvay.tools.android.perf.common.LongIntMap;
+import com.madvay.tools.android.perf.common.StringDictionary;
+import com.madvay.tools.android.perf.common.TracePool;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes the DDMS .alloc format (see {@link AllocationsDecoder}) in a single forward pass over
+ * a stream, for input which cannot be mapped, such as stdin or a gzip-compressed file.
+ * <p>
+ * The string tables come after the entries, so entries are first decoded in terms of raw
+ * string table indices: the allocated class as a class name index, and the trace as a sequence
+ * of raw frame ids, interned as it is read.  Once the tables have been read, each distinct raw
+ * frame is resolved to a {@link StackTraceElement} and each distinct raw trace re-interned.
+ * Besides the decoded columns, memory use is proportional to the number of distinct frames and
+ * traces, not to the size of the capture.
+ */
+final class AllocationsStreamDecoder {
+
+    private AllocationsStreamDecoder() {
+    }
+
+    /**
+     * Reads a whole capture from the stream.  The stream is not closed, and should be buffered.
+     * <p>
+     * The class names are only known at the end, so entries are filtered then, before their
+     * rows are built; their traces are still read, to get to the next entry.
+     */
+    static AllocColumns decode(InputStream in, String source, HeaderFilter filter)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int messageHdrLen = data.readUnsignedByte();
+        int entryHdrLen = data.readUnsignedByte();
+        int stackFrameLen = data.readUnsignedByte();
+        int numEntries = data.readUnsignedShort();
+        long offsetToStrings = data.readInt() & 0xffffffffL;
+        int numClassNames = data.readUnsignedShort();
+        int numMethodNames = data.readUnsignedShort();
+        int numFileNames = data.readUnsignedShort();
+        ByteStreams.skipFully(data, messageHdrLen - 15);
+        long pos = messageHdrLen;
+
+        int[] sizes = new int[numEntries];
+        int[] threads = new int[numEntries];
+        int[] rawClasses = new int[numEntries];
+        int[] rawTraces = new int[numEntries];
+        TracePool rawPool = new TracePool();
+        LongIntMap rawFrameIds = new LongIntMap(1024);
+        long[] rawFrames = new long[1024];
+        int rawFrameCount = 0;
+        int[] traceScratch = new int[256];
+        for (int i = 0; i < numEntries; i++) {
+            sizes[i] = data.readInt();
+            threads[i] = data.readShort();
+            rawClasses[i] = data.readUnsignedShort();
+            int stackDepth = data.readUnsignedByte();
+            ByteStreams.skipFully(data, entryHdrLen - 9);
+            for (int f = 0; f < stackDepth; f++) {
+                long rawFrame = data.readLong();
+                ByteStreams.skipFully(data, stackFrameLen - 8);
+                int id = rawFrameIds.get(rawFrame, -1);
+                if (id < 0) {
+                    id = rawFrameCount++;
+                    if (id == rawFrames.length) {
+                        rawFrames = Arrays.copyOf(rawFrames, id * 2);
+                    }
+                    rawFrames[id] = rawFrame;
+                    rawFrameIds.put(rawFrame, id);
+                }
+                traceScratch[f] = id;
+            }
+            rawTraces[i] = rawPool.internTrace(traceScratch, stackDepth);
+            pos += entryHdrLen + stackDepth * stackFrameLen;
+        }
+
+        if (offsetToStrings < pos) {
+            throw new IOException("Malformed .alloc file: string tables at " + offsetToStrings
+                    + " start before the end of the entries at " + pos);
+        }
+        ByteStreams.skipFully(data, offsetToStrings - pos);
+        String[] classNames = readStringTable(data, numClassNames);
+        String[] methodNames = readStringTable(data, numMethodNames);
+        String[] fileNames = readStringTable(data, numFileNames);
+
+        TracePool pool = new TracePool();
+        int[] frameMap = new int[rawFrameCount];
+        for (int i = 0; i < rawFrameCount; i++) {
+            long rawFrame = rawFrames[i];
+            frameMap[i] = pool.internFrame(new StackTraceElement(
+                    classNames[(int) (rawFrame >>> 48) & 0xffff],
+                    methodNames[(int) (rawFrame >>> 32) & 0xffff],
+                    fileNames[(int) (rawFrame >>> 16) & 0xffff], (short) rawFrame));
+        }
+        int[] traceMap = pool.internAll(rawPool, frameMap);
+
+        HeaderFilter.Bound bound = filter.isEmpty() ? null : filter.bind(classNames);
+        StringDictionary classDictionary = new StringDictionary();
+        int[] ids = new int[numEntries];
+        int[] classes = new int[numEntries];
+        int[] traces = new int[numEntries];
+        int count = 0;
+        for (int i = 0; i < numEntries; i++) {
+            // Entries are sent in reverse order of allocation.
+            int id = numEntries - i;
+            if (bound != null &&
+                !bound.accept(id, sizes[i], (short) threads[i], rawClasses[i])) {
+                continue;
+            }
+            ids[count] = id;
+            sizes[count] = sizes[i];
+            threads[count] = threads[i];
+            classes[count] = classDictionary.intern(classNames[rawClasses[i]]);
+            traces[count] = traceMap[rawTraces[i]];
+            count++;
+        }
+        if (count < numEntries) {
+            ids = Arrays.copyOf(ids, count);
+            sizes = Arrays.copyOf(sizes, count);
+            threads = Arrays.copyOf(threads, count);
+            classes = Arrays.copyOf(classes, count);
+            traces = Arrays.copyOf(traces, count);
+        }
+        return AllocColumns.ofSource(source, pool, classDictionary, ids, sizes, threads, classes,
+                traces);
+    }
+
+    private static String[] readStringTable(DataInputStream data, int count) throws IOException {
+        String[] strings = new String[count];
+        char[] chars = new char[256];
+        for (int i = 0; i < count; i++) {
+            int len = data.readInt();
+            if (len > chars.length) {
+                chars = new char[len];
+            }
+            for (int c = 0; c < len; c++) {
+                chars[c] = data.readChar();
+            }
+            strings[i] = AllocationsDecoder.descriptorToDot(new String(chars, 0, len));
+        }
+        return strings;
+    }
+}
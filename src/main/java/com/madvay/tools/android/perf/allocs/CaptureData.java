@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the contents of a capture, addressed by {@code long} offsets so that files
+ * over 2GB can be read.  All multi-byte values are big-endian.  Reads never change any state,
+ * so they may be made concurrently.
+ */
+public abstract class CaptureData implements Closeable {
+
+    public abstract long length();
+
+    public abstract byte get(long pos);
+
+    public abstract short getShort(long pos);
+
+    public abstract char getChar(long pos);
+
+    public abstract int getInt(long pos);
+
+    public abstract long getLong(long pos);
+
+    @Override
+    public abstract void close();
+
+    /** Wraps a buffer, whose index 0 is offset 0.  Closing does nothing. */
+    public static CaptureData wrap(ByteBuffer buffer) {
+        return new Wrapped(buffer);
+    }
+
+    /**
+     * Maps the whole file read-only, as a list of regions of at most 1GB each.  Closing unmaps
+     * them immediately, where the JVM allows it, rather than when they are garbage collected;
+     * nothing read from this may be used afterwards.
+     */
+    public static CaptureData map(File f) throws IOException {
+        return new Segmented(f);
+    }
+
+    private static final class Wrapped extends CaptureData {
+        private final ByteBuffer buf;
+
+        Wrapped(ByteBuffer buf) {
+            this.buf = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+
+        @Override
+        public long length() {
+            return buf.limit();
+        }
+
+        @Override
+        public byte get(long pos) {
+            return buf.get((int) pos);
+        }
+
+        @Override
+        public short getShort(long pos) {
+            return buf.getShort((int) pos);
+        }
+
+        @Override
+        public char getChar(long pos) {
+            return buf.getChar((int) pos);
+        }
+
+        @Override
+        public int getInt(long pos) {
+            return buf.getInt((int) pos);
+        }
+
+        @Override
+        public long getLong(long pos) {
+            return buf.getLong((int) pos);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class Segmented extends CaptureData {
+        private static final int SEGMENT_BITS = 30;
+        private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+        private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+        /**
+         * Each segment also maps the first bytes of the next one, so that any value of up to 8
+         * bytes starting in a segment can be read from that segment alone.
+         */
+        private static final long OVERLAP = 8;
+
+        private final long length;
+        private MappedByteBuffer[] segments;
+
+        Segmented(File f) throws IOException {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                FileChannel fc = in.getChannel();
+                length = fc.size();
+                int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+                segments = new MappedByteBuffer[Math.max(count, 1)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = i * SEGMENT_SIZE;
+                    long size = Math.min(length - start, SEGMENT_SIZE + OVERLAP);
+                    segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.max(size, 0));
+                    segments[i].order(ByteOrder.BIG_ENDIAN);
+                }
+            } finally {
+                in.close(); // this *also* closes the associated channel, fc
+            }
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public byte get(long pos) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+        }
+
+        @Override
+        public short getShort(long pos) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getShort((int) (pos & SEGMENT_MASK));
+        }
+
+        @Override
+        public char getChar(long pos) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getChar((int) (pos & SEGMENT_MASK));
+        }
+
+        @Override
+        public int getInt(long pos) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & SEGMENT_MASK));
+        }
+
+        @Override
+        public long getLong(long pos) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & SEGMENT_MASK));
+        }
+
+        @Override
+        public void close() {
+            MappedByteBuffer[] toRelease = segments;
+            // Any further read fails fast, rather than touching unmapped memory.
+            segments = null;
+            if (toRelease != null) {
+                for (MappedByteBuffer segment : toRelease) {
+                    unmap(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping without waiting for garbage collection.  There is no public API for
+     * this, so it is best-effort: if the JVM does not allow it, the mapping is left to the GC.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later.
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // Fall through.
+        }
+        try {
+            // Java 7 and 8.
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // Leave it to the GC.
+        }
+    }
+}
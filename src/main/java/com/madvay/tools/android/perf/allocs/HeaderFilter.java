@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import com.madvay.tools.android.perf.common.FilterExpression;
+import com.madvay.tools.android.perf.common.FilterPlan;
+import com.madvay.tools.android.perf.common.Row;
+import com.madvay.tools.android.perf.common.RowAdapter;
+import com.madvay.tools.android.perf.common.StringDictionary;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Row filters which read only the fields of an entry's header (its id, allocated class, size
+ * and thread), so can be evaluated while parsing, before the entry's stack trace is decoded or
+ * an {@link AllocRow} created for it.  Rejected entries are skipped entirely.
+ * <p>
+ * None of these fields are changed by transforming or splitting traces, so the filters give
+ * the same rows whenever they are evaluated.
+ * <p>
+ * Instances are immutable.  Each decoder {@link #bind binds} its own to its class name table,
+ * so a filter on the allocated class alone is evaluated once per class rather than per entry.
+ */
+public final class HeaderFilter {
+
+    /** Accepts every entry. */
+    public static final HeaderFilter ALL = new HeaderFilter(ImmutableList.<FilterExpression>of());
+
+    private static final Set<String> HEADER_COLUMNS =
+            ImmutableSet.of("id", "allocated", "size", "thread");
+
+    private final List<FilterExpression> filters;
+
+    /**
+     * @param filters the filters, all of which entries must match.  Each must satisfy
+     *                {@link #canPushDown}.
+     */
+    public HeaderFilter(List<FilterExpression> filters) {
+        for (FilterExpression filter : filters) {
+            if (!canPushDown(filter)) {
+                throw new IllegalArgumentException("Not a header filter: " + filter);
+            }
+        }
+        this.filters = ImmutableList.copyOf(filters);
+    }
+
+    /** Whether the filter reads only entry header fields. */
+    public static boolean canPushDown(FilterExpression filter) {
+        return HEADER_COLUMNS.containsAll(filter.columns());
+    }
+
+    public boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return Joiner.on(" && ").join(filters);
+    }
+
+    Bound bind(StringDictionary classNames) {
+        String[] names = new String[classNames.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = classNames.get(i);
+        }
+        return bind(names);
+    }
+
+    /** Returns a filter of entries whose allocated class is given as an index into the table. */
+    Bound bind(String[] classNames) {
+        List<FilterExpression> classOnly = new ArrayList<>();
+        List<FilterExpression> rest = new ArrayList<>();
+        for (FilterExpression filter : filters) {
+            for (FilterExpression conjunct : filter.conjuncts()) {
+                if (conjunct.columns().equals(ImmutableSet.of("allocated"))) {
+                    classOnly.add(conjunct);
+                } else {
+                    rest.add(conjunct);
+                }
+            }
+        }
+        Header header = new Header();
+        boolean[] classAccepted = null;
+        if (!classOnly.isEmpty()) {
+            FilterPlan<Header> plan = FilterPlan.plan(HEADER_ADAPTER, classOnly, null);
+            classAccepted = new boolean[classNames.length];
+            for (int i = 0; i < classNames.length; i++) {
+                header.allocatedClass = classNames[i];
+                classAccepted[i] = plan.apply(header);
+            }
+        }
+        FilterPlan<Header> plan =
+                rest.isEmpty() ? null : FilterPlan.plan(HEADER_ADAPTER, rest, null);
+        return new Bound(classNames, classAccepted, plan, header);
+    }
+
+    /** A filter bound to one class name table.  Not thread-safe. */
+    static final class Bound {
+        private final String[] classNames;
+        /** Per class name index, or null if no filter reads only the allocated class. */
+        private final boolean[] classAccepted;
+        /** The other filters, or null if there are none. */
+        private final FilterPlan<Header> plan;
+        /** Reused for every entry. */
+        private final Header header;
+
+        Bound(String[] classNames, boolean[] classAccepted, FilterPlan<Header> plan,
+              Header header) {
+            this.classNames = classNames;
+            this.classAccepted = classAccepted;
+            this.plan = plan;
+            this.header = header;
+        }
+
+        boolean accept(int id, int size, short thread, int classIndex) {
+            if (classAccepted != null && !classAccepted[classIndex]) {
+                return false;
+            }
+            if (plan == null) {
+                return true;
+            }
+            header.id = id;
+            header.size = size;
+            header.thread = thread;
+            header.allocatedClass = classNames[classIndex];
+            return plan.apply(header);
+        }
+    }
+
+    /** The header fields of an entry, as the {@link AllocRow} for it would have them. */
+    private static final class Header extends Row {
+        int id;
+        int size;
+        short thread;
+        String allocatedClass;
+    }
+
+    private static final RowAdapter<Header> HEADER_ADAPTER = new HeaderAdapter();
+
+    /** Columns with the same names, types and values as those of {@link AllocRow.Adapter}. */
+    private static final class HeaderAdapter extends RowAdapter<Header> {
+        static final int ID = 0;
+        static final int ALLOCATED = 1;
+        static final int SIZE = 2;
+        static final int THREAD = 3;
+
+        HeaderAdapter() {
+            super(ImmutableList.of("id", "allocated", "size", "thread"), ImmutableList
+                    .of(CoerceType.NUMERIC, CoerceType.TEXT, CoerceType.NUMERIC,
+                            CoerceType.NUMERIC));
+        }
+
+        @Override
+        public Object get(Header row, String column) {
+            return getString(row, handle(column));
+        }
+
+        @Override
+        public long getLong(Header row, int handle) {
+            switch (handle) {
+                case ID:
+                    return row.id;
+                case SIZE:
+                    return row.size;
+                case THREAD:
+                    return row.thread;
+                default:
+                    throw new IllegalArgumentException("Not numeric: " + columns.get(handle));
+            }
+        }
+
+        @Override
+        public String getString(Header row, int handle) {
+            switch (handle) {
+                case ID:
+                    return Integer.toString(row.id);
+                case ALLOCATED:
+                    return row.allocatedClass;
+                case SIZE:
+                    return Integer.toString(row.size);
+                case THREAD:
+                    return Integer.toString(row.thread);
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import java.util.Arrays;
+
+/**
+ * Stack traces of an .alloc file which are decoded from the mapped {@link CaptureData} only on
+ * demand.
+ * <p>
+ * While decoding entries, the {@link AllocationsDecoder} records each entry's offset and
+ * eagerly decodes only its top frame, the allocator.  The remaining frames are decoded and
+ * interned the first time the trace is asked for.
+ */
+final class LazyTraces {
+
+    private final AllocationsDecoder decoder;
+    private final long[] offsets;
+    /** Frame id of each entry's allocator, or -1 if its trace is empty. */
+    private final int[] allocators;
+    /** Trace id of each entry, or -1 if not yet decoded. */
+    private final int[] resolved;
+
+    LazyTraces(AllocationsDecoder decoder) {
+        this.decoder = decoder;
+        int n = decoder.getEntryCount();
+        offsets = new long[n];
+        allocators = new int[n];
+        resolved = new int[n];
+        Arrays.fill(resolved, -1);
+    }
+
+    void record(int entry, long offset, int allocatorFrame) {
+        offsets[entry] = offset;
+        allocators[entry] = allocatorFrame;
+    }
+
+    /** Decodes the entry's trace if needed, and returns its trace id in the decoder's pool. */
+    synchronized int resolve(int entry) {
+        int t = resolved[entry];
+        if (t < 0) {
+            t = decoder.decodeTrace(offsets[entry]);
+            resolved[entry] = t;
+        }
+        return t;
+    }
+
+    StackTraceElement getAllocator(int entry) {
+        int frame = allocators[entry];
+        return frame < 0 ? null : decoder.getPool().getFrame(frame);
+    }
+}
@@ -36,7 +36,7 @@ public class PrettyAllocRowOutput implements Function<AllocRow, String> {
         PrintWriter pw = new PrintWriter(sw);
         pw.printf("Alloc#: %1$d, Allocated Class: %2$s, Size: %3$d, Thread: %4$d\n", input.id,
                 input.allocatedClass, input.bytes, input.thread);
-        for (StackTraceElement stackElement : input.stackTrace) {
+        for (StackTraceElement stackElement : input.getStackTrace()) {
             pw.printf("       %1$s\n", stackElement.toString());
         }
         return sw.toString();
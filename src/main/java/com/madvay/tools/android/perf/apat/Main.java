@@ -18,19 +18,28 @@
 package com.madvay.tools.android.perf.apat;
 
 import com.madvay.tools.android.perf.BuildInfo;
+import com.madvay.tools.android.perf.allocs.AllocColumns;
+import com.madvay.tools.android.perf.allocs.AllocInvertedIndex;
 import com.madvay.tools.android.perf.allocs.AllocRow;
 import com.madvay.tools.android.perf.allocs.AllocTable;
 import com.madvay.tools.android.perf.allocs.AllocationsParserAdapter;
+import com.madvay.tools.android.perf.allocs.HeaderFilter;
 import com.madvay.tools.android.perf.allocs.PrettyAllocRowOutput;
 import com.madvay.tools.android.perf.common.*;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.io.Resources;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -47,6 +56,11 @@ public class Main {
         System.out.print(s);
     }
 
+    /** Prints to stderr, so as not to mix into results, such as CSV, on stdout. */
+    private static void note(String s) {
+        System.err.println(s);
+    }
+
     private static void err(String s) {
         System.out.println("Error: " + s + "\n");
         System.out.flush();
@@ -171,53 +185,168 @@ public class Main {
     }
 
     private static <T extends TraceTransformableRow> void  //
-    runAllocsListProcessing(CommandLine cmd, TraceTransformableTable<T> table) {
+    runAllocsListProcessing(CommandLine cmd, TraceTransformableTable<T> table,
+                            List<FilterExpression> filters) {
         tableTraceTransform(cmd, table);
         tableTraceSplit(cmd, table);
-        tableRowsFilter(cmd, table);
+        tableRowsFilter(cmd, table, filters);
         tableRowsSample(cmd, table);
         tableRowsSort(cmd, table);
     }
 
+    /**
+     * Unlike list processing, this is a single fused pass over the rows, which are never
+     * collected.  {@code table} only describes them.
+     */
     private static <T extends TraceTransformableRow> Table<AggregateRow>  //
-    runAllocsTopProcessing(CommandLine cmd, TraceTransformableTable<T> table) {
-        tableTraceTransform(cmd, table);
-        tableTraceSplit(cmd, table);
-        tableRowsFilter(cmd, table);
+    runAllocsTopProcessing(CommandLine cmd, TraceTransformableTable<T> table,
+                           Iterable<? extends T> rows, List<FilterExpression> filters) {
+        RowPipeline<T> pipeline = new RowPipeline<>(table);
+        pipeline.transformTraces(cmd.getTraceTransformsFlag("traceTransform"));
+        if (Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("splitByTrace", "false"))) {
+            pipeline.splitTraces();
+        }
+        // Without transforms, the rows as given are those the filters will see, so can be
+        // sampled if they are at hand.
+        boolean sampleable = rows instanceof List && !pipeline.transformsRows();
+        FilterPlan<T> plan = FilterPlan.plan(table.getAdapter(), filters,
+                sampleable ? (List<? extends T>) rows : null);
+        explain(cmd, plan);
+        if (!plan.isEmpty()) {
+            pipeline.matching(plan);
+        }
         String groupBy = cmd.getUnaryFlagWithDefault("groupBy", "allocatorMethod");
         String weight = cmd.getUnaryFlagWithDefault("weight", "size");
 
-        Table<AggregateRow> agg = table.groupAndAggregate(groupBy, weight,
-                weight.equals("size") ? Table.AggregationType.SUM :
-                weight.equals("id") ? Table.AggregationType.COUNT : Table.AggregationType.UNIQUE);
+        int threads = Integer.parseInt(cmd.getUnaryFlagWithDefault("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        if (threads < 1) {
+            throw new IllegalArgumentException("--threads must be at least 1: " + threads);
+        }
+
+        List<Metric> metrics = getMetrics(cmd);
+        if (!metrics.isEmpty()) {
+            Table<AggregateRow> agg = pipeline.groupAndAggregate(rows, groupBy, metrics, threads,
+                    uniquePrecision(cmd));
+            tableRowsSort(cmd, agg, ImmutableList.of("-" + metrics.get(0), "group"));
+            return agg;
+        }
+        Table<AggregateRow> agg = pipeline.groupAndAggregate(rows, groupBy, weight,
+                aggregationType(weight), threads, uniquePrecision(cmd));
         tableRowsSort(cmd, agg, ImmutableList.of("-weight", "group"));
         return agg;
     }
 
+    /** The metrics given by --metrics, which replace --weight, or none. */
+    private static List<Metric> getMetrics(CommandLine cmd) {
+        List<Metric> ret = new ArrayList<>();
+        for (String spec : cmd.getMultiFlagWithInternalLists("metrics")) {
+            ret.add(Metric.parse(spec));
+        }
+        return ret;
+    }
+
+    /** Whether the aggregation counts distinct values. */
+    private static boolean countsUnique(CommandLine cmd) {
+        List<Metric> metrics = getMetrics(cmd);
+        if (metrics.isEmpty()) {
+            return aggregationType(cmd.getUnaryFlagWithDefault("weight", "size")) ==
+                   Table.AggregationType.UNIQUE;
+        }
+        for (Metric metric : metrics) {
+            if (metric.kind == Metric.Kind.UNIQUE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Table.AggregationType aggregationType(String weight) {
+        return weight.equals("size") ? Table.AggregationType.SUM :
+               weight.equals("id") ? Table.AggregationType.COUNT : Table.AggregationType.UNIQUE;
+    }
+
+    /** 0 to count unique weights exactly, or else the {@link HyperLogLog} precision. */
+    private static int uniquePrecision(CommandLine cmd) {
+        if (!Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("approximate", "false"))) {
+            return 0;
+        }
+        int precision = Integer.parseInt(cmd.getUnaryFlagWithDefault("precision", "12"));
+        HyperLogLog.checkPrecision(precision);
+        return precision;
+    }
+
     private static <T extends Row> void tableRowsSort(CommandLine cmd, Table<T> table) {
         tableRowsSort(cmd, table, ImmutableList.<String>of());
     }
 
     private static <T extends Row> void tableRowsSample(CommandLine cmd, Table<T> table) {
+        String samplesPer = cmd.getUnaryFlagWithDefault("samplesPer", "");
+        if (!samplesPer.isEmpty()) {
+            int colon = samplesPer.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Bad samplesPer spec: " + samplesPer);
+            }
+            table.samplePer(samplesPer.substring(0, colon),
+                    Integer.parseInt(samplesPer.substring(colon + 1)));
+        }
         table.sample(Integer.parseInt(cmd.getUnaryFlagWithDefault("samples", "-1")));
     }
 
+    /** Sorts, and keeps only the first --limit rows, which are selected without a full sort. */
     private static <T extends Row> void tableRowsSort(CommandLine cmd, Table<T> table,
                                                       List<String> defaultSort) {
+        int limit = Integer.parseInt(cmd.getUnaryFlagWithDefault("limit", "-1"));
         List<String> sort = cmd.getMultiFlagWithInternalLists("sort");
         if (!sort.isEmpty()) {
-            table.sortOn(sort);
+            table.sortOn(sort, limit);
         } else if (!defaultSort.isEmpty()) {
-            table.sortOn(defaultSort);
+            table.sortOn(defaultSort, limit);
+        } else {
+            table.limit(limit);
         }
     }
 
-    private static <T extends Row> void tableRowsFilter(CommandLine cmd, Table<T> table) {
+    private static <T extends Row> void tableRowsFilter(CommandLine cmd, Table<T> table,
+                                                        List<FilterExpression> filters) {
+        FilterPlan<T> plan = FilterPlan.plan(table.getAdapter(), filters, table.getRows());
+        explain(cmd, plan);
+        if (!plan.isEmpty()) {
+            table.matching(plan);
+        }
+    }
+
+    /** Every row filter given, both per column and by --where. */
+    private static List<FilterExpression> getFilters(CommandLine cmd, Table<?> table) {
+        List<FilterExpression> ret = new ArrayList<>();
         for (String key : table.getAdapter().columns) {
             for (FilterSpec spec : cmd.getFilterSpecsFlag(key)) {
-                table.matching(spec);
+                ret.add(FilterExpression.of(spec));
             }
         }
+        ret.addAll(getWhereFlag(cmd));
+        return ret;
+    }
+
+    private static void explain(CommandLine cmd, FilterPlan<?> plan) {
+        if (Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("explain", "false"))) {
+            note(plan.explain());
+        }
+    }
+
+    private static void explain(CommandLine cmd, HeaderFilter filter) {
+        if (!filter.isEmpty() &&
+            Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("explain", "false"))) {
+            note("Evaluated while parsing, before traces are decoded: " + filter);
+        }
+    }
+
+    private static List<FilterExpression> getWhereFlag(CommandLine cmd) {
+        List<FilterExpression> ret = new ArrayList<>();
+        for (String where : cmd.getMultiFlag("where")) {
+            ret.add(FilterExpression.parse(where));
+        }
+        return ret;
     }
 
     private static <T extends TraceTransformableRow> void tableTraceSplit(CommandLine cmd,
@@ -229,9 +358,7 @@ public class Main {
 
     private static <T extends TraceTransformableRow> void tableTraceTransform(CommandLine cmd,
                                                                               TraceTransformableTable<T> table) {
-        for (TraceTransformers.TT tt : cmd.getTraceTransformsFlag("traceTransform")) {
-            table.transformTraces(tt);
-        }
+        table.transformTraces(cmd.getTraceTransformsFlag("traceTransform"));
     }
 
     private static <T extends Row> TableFormatter<T>  //
@@ -242,37 +369,176 @@ public class Main {
     }
 
     private static void runAllocs(CommandLine cmd) {
-        AllocTable table = new AllocTable(AllocationsParserAdapter.parse(cmd.args.get(1)));
+        boolean useIndex = Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("index", "true"));
+        if (cmd.args.size() < 2) {
+            throw new IllegalArgumentException("No .alloc files given");
+        }
+        List<String> files = cmd.args.subList(1, cmd.args.size());
+        boolean lazyTraces = !needsFullTraces(cmd);
+        // Filters on entry header fields are pushed down into the parser.  Those fields are not
+        // changed by transforming or splitting traces, so this gives the same rows.
+        List<FilterExpression> filters = new ArrayList<>();
+        List<FilterExpression> pushed = new ArrayList<>();
+        for (FilterExpression filter : getFilters(cmd, new AllocTable())) {
+            for (FilterExpression conjunct : filter.conjuncts()) {
+                (HeaderFilter.canPushDown(conjunct) ? pushed : filters).add(conjunct);
+            }
+        }
+        HeaderFilter headerFilter = new HeaderFilter(pushed);
+        explain(cmd, headerFilter);
         switch (cmd.args.get(0)) {
             case "list": {
-                runAllocsList(cmd, table);
+                AllocColumns rows = AllocationsParserAdapter
+                        .parse(files, useIndex, lazyTraces, headerFilter);
+                boolean showSource = files.size() > 1 || asksForSource(cmd, filters);
+                runAllocsList(cmd, new AllocTable(invertedIndexFilter(cmd, rows, filters)),
+                        filters, showSource);
                 break;
             }
             case "top": {
-                runAllocsTop(cmd, table);
+                Iterable<AllocRow> rows = AllocationsParserAdapter
+                        .scan(files, useIndex, lazyTraces, headerFilter);
+                if (rows instanceof AllocColumns) {
+                    rows = invertedIndexFilter(cmd, (AllocColumns) rows, filters);
+                }
+                runAllocsTop(cmd, rows, filters);
                 break;
             }
             default:
                 throw new IllegalArgumentException("Unknown allocs subcommand: " + cmd.args.get(0));
         }
+        if (useIndex) {
+            // Only now, so that the query above could decode lazily and skip filtered entries.
+            System.out.flush();
+            AllocationsParserAdapter.writeIndexes(files);
+        }
+    }
+
+    /**
+     * Applies the filters which an {@link AllocInvertedIndex} of the rows can answer, and
+     * removes them from {@code filters}.  The index describes the rows as loaded, so is not
+     * used if traces are to be transformed or split.
+     */
+    private static AllocColumns invertedIndexFilter(CommandLine cmd, AllocColumns rows,
+                                                    List<FilterExpression> filters) {
+        if (!Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("invertedIndex", "true")) ||
+            !cmd.getMultiFlag("traceTransform").isEmpty() ||
+            Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("splitByTrace", "false")) ||
+            !Iterables.any(filters, new Predicate<FilterExpression>() {
+                @Override
+                public boolean apply(FilterExpression input) {
+                    return AllocInvertedIndex.mayAnswer(input);
+                }
+            })) {
+            return rows;
+        }
+        AllocInvertedIndex index = AllocInvertedIndex.of(rows);
+        if (index == null) {
+            return rows;
+        }
+        BitSet matched = null;
+        List<FilterExpression> answered = new ArrayList<>();
+        for (Iterator<FilterExpression> it = filters.iterator(); it.hasNext(); ) {
+            FilterExpression filter = it.next();
+            BitSet m = AllocInvertedIndex.mayAnswer(filter) ? index.matching(filter) : null;
+            if (m == null) {
+                continue;
+            }
+            if (matched == null) {
+                matched = m;
+            } else {
+                matched.and(m);
+            }
+            answered.add(filter);
+            it.remove();
+        }
+        if (matched == null) {
+            return rows;
+        }
+        if (Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("explain", "false"))) {
+            note("Answered from the inverted index, before other filters: " +
+                 Joiner.on(" && ").join(answered));
+        }
+        return index.select(matched);
     }
 
-    private static void runAllocsTop(CommandLine cmd, AllocTable table) {
-        Table<AggregateRow> aggTable = runAllocsTopProcessing(cmd, table);
+    /**
+     * Whether the query looks at more of each stack trace than its top frame.  If not, traces
+     * can be decoded lazily.  (Either way, results are the same.)
+     */
+    private static boolean needsFullTraces(CommandLine cmd) {
+        if (!cmd.args.get(0).equals("top") || !cmd.getMultiFlag("traceTransform").isEmpty() ||
+            !cmd.getMultiFlag("stackTrace").isEmpty() ||
+            Iterables.any(getWhereFlag(cmd), new Predicate<FilterExpression>() {
+                @Override
+                public boolean apply(FilterExpression input) {
+                    return input.columns().contains("stackTrace");
+                }
+            }) ||
+            Boolean.parseBoolean(cmd.getUnaryFlagWithDefault("splitByTrace", "false"))) {
+            return true;
+        }
+        for (Metric metric : getMetrics(cmd)) {
+            if ("stackTrace".equals(metric.column)) {
+                return true;
+            }
+        }
+        return cmd.getUnaryFlagWithDefault("groupBy", "allocatorMethod").equals("stackTrace") ||
+               cmd.getUnaryFlagWithDefault("weight", "size").equals("stackTrace");
+    }
+
+    private static void runAllocsTop(CommandLine cmd, Iterable<AllocRow> rows,
+                                     List<FilterExpression> filters) {
+        Table<AggregateRow> aggTable =
+                runAllocsTopProcessing(cmd, new AllocTable(), rows, filters);
+        int precision = uniquePrecision(cmd);
+        boolean pretty = cmd.getUnaryFlagWithDefault("format", "pretty").equals("pretty");
+        if (precision != 0 && countsUnique(cmd) && pretty) {
+            outln(String.format("Unique counts are estimated, with a standard error of %.1f%%%n",
+                    100 * HyperLogLog.standardError(precision)));
+        }
+        PrettyAggregateRowOutput prettyOutput = new PrettyAggregateRowOutput(aggTable);
         TableFormatter<AggregateRow> fmt = pickFormatter(cmd,
                 ImmutableMap.<String, Function<? super AggregateRow, String>>of(  //
                         "csv",
                         new CsvOutput<>(aggTable.getAdapter().columns, aggTable.getAdapter()),  //
-                        "pretty", new PrettyAggregateRowOutput(aggTable)));
+                        "pretty", prettyOutput));
+        if (pretty) {
+            out(prettyOutput.header());
+        }
         out(fmt.format(aggTable));
     }
 
-    private static void runAllocsList(CommandLine cmd, AllocTable table) {
-        runAllocsListProcessing(cmd, table);
+    /**
+     * @param showSource whether CSV output has the source column.  It is left out for a single
+     *                   capture, where it is constant, unless a filter or sort uses it.
+     */
+    private static void runAllocsList(CommandLine cmd, AllocTable table,
+                                      List<FilterExpression> filters, boolean showSource) {
+        runAllocsListProcessing(cmd, table, filters);
+        List<String> columns = table.getAdapter().columns;
+        if (!showSource) {
+            columns = columns.subList(0, columns.indexOf("source"));
+        }
         TableFormatter<AllocRow> fmt =
                 pickFormatter(cmd, ImmutableMap.<String, Function<? super AllocRow, String>>of(  //
-                        "csv", new CsvOutput<>(table.getAdapter().columns, table.getAdapter()),  //
+                        "csv", new CsvOutput<>(columns, table.getAdapter()),  //
                         "pretty", new PrettyAllocRowOutput()));
         out(fmt.format(table));
     }
+
+    /** Whether any of the filters, or the sort, reads the source column. */
+    private static boolean asksForSource(CommandLine cmd, List<FilterExpression> filters) {
+        for (FilterExpression filter : filters) {
+            if (filter.columns().contains("source")) {
+                return true;
+            }
+        }
+        for (String colSpec : cmd.getMultiFlagWithInternalLists("sort")) {
+            if (colSpec.equals("source") || colSpec.equals("-source")) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -19,35 +19,85 @@ package com.madvay.tools.android.perf.common;
 
 import com.google.common.collect.ImmutableList;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- *
+ * A group, and one or more metrics of its rows, from {@link GroupAggregator}.
  */
 public class AggregateRow extends Row {
+    /** The first metric. */
     public final long value;
     public final Object group;
+    private final long[] metrics;
 
     public AggregateRow(Long agg, Object group) {
-        this.value = agg;
+        this(group, new long[]{agg});
+    }
+
+    public AggregateRow(Object group, long[] metrics) {
+        this.value = metrics[0];
         this.group = group;
+        this.metrics = metrics;
+    }
+
+    public int getMetricCount() {
+        return metrics.length;
     }
 
+    public long getMetric(int i) {
+        return metrics[i];
+    }
+
+    /** Columns for each metric, in order, then "group". */
     static final class Adapter extends RowAdapter<AggregateRow> {
+        private final int groupHandle;
 
         Adapter(boolean groupNumeric) {
-            super(ImmutableList.of("weight", "group"), ImmutableList
-                    .of(CoerceType.NUMERIC, groupNumeric ? CoerceType.NUMERIC : CoerceType.TEXT));
+            this(ImmutableList.of("weight"), groupNumeric);
+        }
+
+        Adapter(List<String> metricColumns, boolean groupNumeric) {
+            super(columns(metricColumns), types(metricColumns.size(), groupNumeric));
+            groupHandle = metricColumns.size();
+        }
+
+        private static List<String> columns(List<String> metricColumns) {
+            List<String> ret = new ArrayList<>(metricColumns);
+            ret.add("group");
+            return ret;
+        }
+
+        private static List<CoerceType> types(int metrics, boolean groupNumeric) {
+            List<CoerceType> ret = new ArrayList<>();
+            for (int i = 0; i < metrics; i++) {
+                ret.add(CoerceType.NUMERIC);
+            }
+            ret.add(groupNumeric ? CoerceType.NUMERIC : CoerceType.TEXT);
+            return ret;
         }
 
         @Override
         public Object get(AggregateRow row, String column) {
-            switch (column) {
-                case "weight":
-                    return row.value;
-                case "group":
-                    return row.group;
-                default:
-                    throw new IllegalArgumentException();
+            int handle = handle(column);
+            return handle == groupHandle ? row.group : (Object) row.metrics[handle];
+        }
+
+        @Override
+        public long getLong(AggregateRow row, int handle) {
+            if (handle == groupHandle) {
+                return row.group instanceof Long ? (Long) row.group :
+                       Long.parseLong(row.group.toString());
+            }
+            return row.metrics[handle];
+        }
+
+        @Override
+        public String getString(AggregateRow row, int handle) {
+            if (handle == groupHandle) {
+                return row.group.toString();
             }
+            return Long.toString(row.metrics[handle]);
         }
     }
 }
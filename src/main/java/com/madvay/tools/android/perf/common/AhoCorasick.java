@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Finds which of a set of strings occur in a text, in a single pass over the text, with an
+ * Aho-Corasick automaton.
+ * <p>
+ * The automaton is compiled into a complete transition table over the characters which occur
+ * in the patterns (any other character goes back to the start), so each character of the text
+ * costs one table lookup.  Immutable, so may be shared between threads.
+ */
+public final class AhoCorasick {
+
+    private final int patternCount;
+    /** Per character, its index in the alphabet, or 0 if it occurs in no pattern. */
+    private final char[] charClass = new char[Character.MAX_VALUE + 1];
+    private final int alphabetSize;
+    /** The next state is {@code delta[state * alphabetSize + charClass[c]]}. */
+    private final int[] delta;
+    /** Per state, the patterns which end there, including as suffixes of longer ones. */
+    private final int[][] outputs;
+
+    public AhoCorasick(List<String> patterns) {
+        patternCount = patterns.size();
+        int size = 1;
+        int maxStates = 1;
+        for (String pattern : patterns) {
+            maxStates += pattern.length();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (charClass[c] == 0) {
+                    if (size == Character.MAX_VALUE) {
+                        throw new IllegalArgumentException("Too many distinct characters");
+                    }
+                    charClass[c] = (char) size++;
+                }
+            }
+        }
+        alphabetSize = size;
+
+        // The trie, with -1 for no child.
+        int[] next = new int[maxStates * alphabetSize];
+        Arrays.fill(next, -1);
+        List<List<Integer>> out = new ArrayList<>();
+        out.add(new ArrayList<Integer>());
+        int states = 1;
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            int s = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int slot = s * alphabetSize + charClass[pattern.charAt(i)];
+                if (next[slot] < 0) {
+                    next[slot] = states++;
+                    out.add(new ArrayList<Integer>());
+                }
+                s = next[slot];
+            }
+            out.get(s).add(p);
+        }
+
+        // Breadth first, so that each state's failure state is complete before the state.
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < alphabetSize; c++) {
+            int t = next[c];
+            if (t < 0) {
+                next[c] = 0;
+            } else {
+                fail[t] = 0;
+                queue[tail++] = t;
+            }
+        }
+        while (head < tail) {
+            int s = queue[head++];
+            out.get(s).addAll(out.get(fail[s]));
+            for (int c = 0; c < alphabetSize; c++) {
+                int slot = s * alphabetSize + c;
+                int t = next[slot];
+                int onFail = next[fail[s] * alphabetSize + c];
+                if (t < 0) {
+                    next[slot] = onFail;
+                } else {
+                    fail[t] = onFail;
+                    queue[tail++] = t;
+                }
+            }
+        }
+        delta = Arrays.copyOf(next, states * alphabetSize);
+        outputs = new int[states][];
+        for (int s = 0; s < states; s++) {
+            List<Integer> o = out.get(s);
+            outputs[s] = new int[o.size()];
+            for (int i = 0; i < outputs[s].length; i++) {
+                outputs[s][i] = o.get(i);
+            }
+        }
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /** Adds to {@code found} the index of every pattern which occurs in the text. */
+    public void find(CharSequence text, BitSet found) {
+        int count = 0;
+        for (int p : outputs[0]) {
+            // The empty pattern.
+            found.set(p);
+            count++;
+        }
+        int s = 0;
+        int len = text.length();
+        for (int i = 0; i < len && count < patternCount; i++) {
+            s = delta[s * alphabetSize + charClass[text.charAt(i)]];
+            for (int p : outputs[s]) {
+                if (!found.get(p)) {
+                    found.set(p);
+                    count++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A stable sort of rows by columns, in the same order as {@link Table#sortOn}'s comparators,
+ * which reads each column of each row only once.
+ * <p>
+ * Each column's values are turned into unsigned {@code long} keys: numbers by flipping the
+ * sign bit, and text by its rank among the column's distinct values.  Descending columns
+ * complement their keys.  The row indexes are then sorted by least significant digit radix
+ * sort, one byte at a time, skipping bytes which are the same in every key, and one column at
+ * a time from the last; each pass is stable, so the result is ordered by the first column,
+ * then the next, and so on.  This takes time linear in the rows for each column, and is only
+ * a few passes for ranks and small numbers.
+ */
+final class ColumnSort<T extends Row> {
+
+    private final List<? extends T> rows;
+    private final RowAdapter<T> adapter;
+    private int[] order;
+    private int[] orderTmp;
+    private long[] keys;
+    private long[] keysTmp;
+
+    private ColumnSort(List<? extends T> rows, RowAdapter<T> adapter) {
+        this.rows = rows;
+        this.adapter = adapter;
+        int n = rows.size();
+        order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        orderTmp = new int[n];
+        keys = new long[n];
+        keysTmp = new long[n];
+    }
+
+    /**
+     * The indexes of the rows in sorted order.
+     *
+     * @param rows should be {@link java.util.RandomAccess}
+     * @param cols column names, each prefixed with a hyphen if descending
+     */
+    static <T extends Row> int[] sortedIndexes(List<? extends T> rows, RowAdapter<T> adapter,
+                                               List<String> cols) {
+        ColumnSort<T> sort = new ColumnSort<>(rows, adapter);
+        for (int c = cols.size() - 1; c >= 0; c--) {
+            String colSpec = cols.get(c);
+            boolean descending = colSpec.startsWith("-");
+            sort.sortBy(adapter.handle(descending ? colSpec.substring(1) : colSpec), descending);
+        }
+        return sort.order;
+    }
+
+    private void sortBy(int handle, boolean descending) {
+        if (adapter.types.get(handle) == RowAdapter.CoerceType.NUMERIC) {
+            for (int i = 0; i < order.length; i++) {
+                keys[i] = adapter.getLong(rows.get(order[i]), handle) ^ Long.MIN_VALUE;
+            }
+        } else {
+            textKeys(handle);
+        }
+        if (descending) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = ~keys[i];
+            }
+        }
+        radixSort();
+    }
+
+    /** Sets the keys to the ranks of the rows' text among the distinct values. */
+    private void textKeys(int handle) {
+        ObjectIntMap<Object> keyIds = new ObjectIntMap<>(64, true);
+        ObjectIntMap<String> stringIds = new ObjectIntMap<>(64, false);
+        String[] values = new String[64];
+        for (int i = 0; i < order.length; i++) {
+            T row = rows.get(order[i]);
+            Object valueKey = adapter.getValueKey(row, handle);
+            int id = valueKey == null ? -1 : keyIds.get(valueKey, -1);
+            if (id < 0) {
+                String value = adapter.getString(row, handle);
+                id = stringIds.get(value, -1);
+                if (id < 0) {
+                    id = stringIds.size();
+                    if (id == values.length) {
+                        values = Arrays.copyOf(values, id * 2);
+                    }
+                    values[id] = value;
+                    stringIds.put(value, id);
+                }
+                if (valueKey != null) {
+                    keyIds.put(valueKey, id);
+                }
+            }
+            keys[i] = id;
+        }
+        final String[] distinct = values;
+        Integer[] byValue = new Integer[stringIds.size()];
+        for (int id = 0; id < byValue.length; id++) {
+            byValue[id] = id;
+        }
+        Arrays.sort(byValue, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return distinct[o1].compareTo(distinct[o2]);
+            }
+        });
+        long[] rank = new long[byValue.length];
+        for (int r = 0; r < byValue.length; r++) {
+            rank[byValue[r]] = r;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rank[(int) keys[i]];
+        }
+    }
+
+    /** Stably sorts the order, and keys, by the keys as unsigned numbers. */
+    private void radixSort() {
+        int n = keys.length;
+        if (n < 2) {
+            return;
+        }
+        long differing = 0;
+        for (int i = 1; i < n; i++) {
+            differing |= keys[i] ^ keys[0];
+        }
+        int[] counts = new int[257];
+        for (int shift = 0; shift < 64; shift += 8) {
+            if (((differing >>> shift) & 0xFF) == 0) {
+                continue;
+            }
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(int) ((keys[i] >>> shift) & 0xFF) + 1]++;
+            }
+            for (int b = 0; b < 256; b++) {
+                counts[b + 1] += counts[b];
+            }
+            for (int i = 0; i < n; i++) {
+                int to = counts[(int) ((keys[i] >>> shift) & 0xFF)]++;
+                keysTmp[to] = keys[i];
+                orderTmp[to] = order[i];
+            }
+            long[] k = keys;
+            keys = keysTmp;
+            keysTmp = k;
+            int[] o = order;
+            order = orderTmp;
+            orderTmp = o;
+        }
+    }
+}
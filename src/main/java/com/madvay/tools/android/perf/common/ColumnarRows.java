@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Predicate;
+
+import java.util.AbstractList;
+import java.util.Comparator;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of rows stored column-wise in primitive arrays.
+ * <p>
+ * Rows are materialized as lightweight objects only when {@link #get(int)} is called.
+ * Filtering, sorting and sampling work on row indexes and produce new, dense
+ * {@link ColumnarRows} via {@link #select(int[], int)}, so a {@link Table} backed by one never
+ * holds a row object per allocation.
+ */
+public abstract class ColumnarRows<T extends Row> extends AbstractList<T> implements RandomAccess {
+
+    /**
+     * Returns a new instance holding rows {@code rows[0..count)} of this one, in that order.
+     * Row indexes may repeat.
+     */
+    public abstract ColumnarRows<T> select(int[] rows, int count);
+
+    public ColumnarRows<T> filter(Predicate<? super T> predicate) {
+        int n = size();
+        int[] keep = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (predicate.apply(get(i))) {
+                keep[count++] = i;
+            }
+        }
+        return select(keep, count);
+    }
+
+    /** The first {@code k} rows of a stable sort by the comparator, selected per {@link TopK}. */
+    public ColumnarRows<T> leastOf(Comparator<? super T> comparator, int k) {
+        int[] order = TopK.leastIndexes(this, comparator, k);
+        return select(order, order.length);
+    }
+}
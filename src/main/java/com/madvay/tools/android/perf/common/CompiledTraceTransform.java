@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.MapMaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of {@link TraceTransformers.TT}s compiled into one transform, per
+ * {@link TraceTransformers#compile}.
+ * <p>
+ * {@link #apply(TracePool, int)} copies a trace's frame ids into a scratch array once, rewrites
+ * them in place through every step, and interns the result, so no intermediate lists are built.
+ * Since the same traces recur across many rows, results are memoized per input trace id, and
+ * each distinct trace is transformed only once.
+ * <p>
+ * Not thread-safe.
+ */
+public final class CompiledTraceTransform implements TraceTransformers.TT {
+
+    private final List<TraceTransformers.FrameTransform> steps = new ArrayList<>();
+    /**
+     * Per pool, each trace id's transformed trace id, plus 1; 0 if not yet transformed.  Pools
+     * are compared by identity, and weakly held, so a transform kept across runs, or applied to
+     * lists each in their own pool, does not keep their pools or memos alive.
+     */
+    private final Map<TracePool, int[]> memos = new MapMaker().weakKeys().makeMap();
+    private int[] scratch = new int[256];
+
+    CompiledTraceTransform(List<? extends TraceTransformers.TT> tts) {
+        List<TraceTransformers.FrameFilter> filters = new ArrayList<>();
+        for (TraceTransformers.TT tt : tts) {
+            if (tt instanceof TraceTransformers.FrameFilter) {
+                filters.add((TraceTransformers.FrameFilter) tt);
+                continue;
+            }
+            addFilters(filters);
+            steps.add(tt instanceof TraceTransformers.FrameTransform ?
+                      (TraceTransformers.FrameTransform) tt : new ListStep(tt));
+        }
+        addFilters(filters);
+    }
+
+    /** Adds the filters as a single step, and clears the list. */
+    private void addFilters(List<TraceTransformers.FrameFilter> filters) {
+        if (filters.size() == 1) {
+            steps.add(filters.get(0));
+        } else if (filters.size() > 1) {
+            final TraceTransformers.FrameFilter[] all =
+                    filters.toArray(new TraceTransformers.FrameFilter[filters.size()]);
+            steps.add(new TraceTransformers.FrameFilter() {
+                @Override
+                boolean keeps(TracePool pool, int frameId) {
+                    for (TraceTransformers.FrameFilter filter : all) {
+                        if (!filter.keeps(pool, frameId)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+        filters.clear();
+    }
+
+    /** Whether this transform leaves every trace as it is. */
+    public boolean isIdentity() {
+        return steps.isEmpty();
+    }
+
+    /** Transforms the trace, interning the result into the same pool. */
+    public int apply(TracePool pool, int traceId) {
+        int[] memo = memos.get(pool);
+        if (memo == null || traceId >= memo.length) {
+            memo = memo == null ? new int[Math.max(pool.traceCount(), traceId + 1)] :
+                   Arrays.copyOf(memo, Math.max(memo.length * 2, traceId + 1));
+            memos.put(pool, memo);
+        }
+        int ret = memo[traceId] - 1;
+        if (ret < 0) {
+            int len = pool.getTraceLength(traceId);
+            if (len > scratch.length) {
+                scratch = new int[len];
+            }
+            for (int i = 0; i < len; i++) {
+                scratch[i] = pool.getFrameId(traceId, i);
+            }
+            for (TraceTransformers.FrameTransform step : steps) {
+                len = step.apply(scratch, len, pool);
+            }
+            ret = pool.internTrace(scratch, len);
+            memo[traceId] = ret + 1;
+        }
+        return ret;
+    }
+
+    @Override
+    public List<StackTraceElement> apply(List<StackTraceElement> input) {
+        TracePool pool = new TracePool();
+        return pool.getTrace(apply(pool, pool.internTrace(input)));
+    }
+
+    /** Adapts a transform which only works on lists of frames. */
+    private static final class ListStep extends TraceTransformers.FrameTransform {
+        private final TraceTransformers.TT tt;
+
+        ListStep(TraceTransformers.TT tt) {
+            this.tt = tt;
+        }
+
+        @Override
+        int apply(int[] frames, int len, TracePool pool) {
+            List<StackTraceElement> in = new ArrayList<>(len);
+            for (int i = 0; i < len; i++) {
+                in.add(pool.getFrame(frames[i]));
+            }
+            List<StackTraceElement> out = tt.apply(in);
+            if (out.size() > frames.length) {
+                throw new IllegalStateException("Transform lengthened a trace");
+            }
+            for (int i = 0; i < out.size(); i++) {
+                frames[i] = pool.internFrame(out.get(i));
+            }
+            return out.size();
+        }
+    }
+}
@@ -0,0 +1,741 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A boolean row filter expression, as given to {@code --where}, e.g.
+ * {@code size > 1024 || allocated ~ "byte\\[\\]"}.
+ * <pre>
+ *   expr       := and ('||' and)*
+ *   and        := unary ('&amp;&amp;' unary)*
+ *   unary      := '!' unary | '(' expr ')' | 'true' | 'false' | comparison
+ *   comparison := column op value
+ *   op         := '==' | '=' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' | '~' | '!~'
+ *                 | 'contains'
+ *   value      := word | "string"
+ * </pre>
+ * Comparisons have the same meaning as the equivalent {@link FilterSpec}: {@code ~} is
+ * {@link FilterSpec.FilterType#RE_MATCH} and {@code contains} is
+ * {@link FilterSpec.FilterType#CONTAINS}.  Inside a string, {@code \"} and
+ * {@code \\} are escapes for {@code "} and {@code \}; other backslashes are kept, for regexes.
+ * <p>
+ * Parsing folds constants: negations are pushed into the comparisons, and {@code true} and
+ * {@code false} are eliminated.  {@link #compile} then turns the tree into a single predicate,
+ * compiling each regex once, and replacing regexes which match only a literal string with an
+ * equality test.
+ */
+public abstract class FilterExpression {
+
+    private FilterExpression() {
+    }
+
+    public static FilterExpression parse(String text) {
+        Parser parser = new Parser(text);
+        FilterExpression ret = parser.parseOr();
+        if (parser.peek() != null) {
+            throw parser.error("Unexpected '" + parser.peek() + "'");
+        }
+        return ret;
+    }
+
+    /** The expression equivalent to a column filter flag. */
+    public static FilterExpression of(FilterSpec spec) {
+        return new Comparison(spec);
+    }
+
+    /** The expressions whose conjunction is this one; just this, unless it is an {@code &&}. */
+    public List<FilterExpression> conjuncts() {
+        return ImmutableList.of(this);
+    }
+
+    /** The estimated relative cost of evaluating this on a row, for {@link FilterPlan}. */
+    abstract double cost(RowAdapter<?> adapter);
+
+    /** A guess at the fraction of rows this matches, for when there are none to sample. */
+    abstract double defaultSelectivity();
+
+    /**
+     * Returns a predicate which evaluates this expression over rows of the adapter, with
+     * {@code &&} and {@code ||} short-circuiting left to right.
+     *
+     * @throws IllegalArgumentException if a column is unknown, or a numeric column is compared
+     *                                  to something which is not a number.
+     */
+    public abstract <T extends Row> Predicate<T> compile(RowAdapter<T> adapter);
+
+    /**
+     * Evaluates this expression over a whole set of rows, numbered {@code [0, rows)}, at once:
+     * from the rows matching each comparison, per {@code leaves}, by set intersection and union.
+     *
+     * @param leaves gives a new set of the rows matching the comparison, or null if it cannot.
+     * @return the rows matching this expression, or null if {@code leaves} gives null for any
+     *         comparison in it.
+     */
+    public abstract BitSet evaluate(Function<FilterSpec, BitSet> leaves, int rows);
+
+    /** The columns this expression reads. */
+    public Set<String> columns() {
+        Set<String> ret = new LinkedHashSet<>();
+        addColumns(ret);
+        return ret;
+    }
+
+    abstract void addColumns(Set<String> columns);
+
+    abstract FilterExpression negate();
+
+    /** Returns this in canonical form, with every sub-expression parenthesized. */
+    @Override
+    public abstract String toString();
+
+    static final class Constant extends FilterExpression {
+        static final Constant TRUE = new Constant(true);
+        static final Constant FALSE = new Constant(false);
+
+        final boolean value;
+
+        private Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public <T extends Row> Predicate<T> compile(RowAdapter<T> adapter) {
+            return value ? Predicates.<T>alwaysTrue() : Predicates.<T>alwaysFalse();
+        }
+
+        @Override
+        public BitSet evaluate(Function<FilterSpec, BitSet> leaves, int rows) {
+            BitSet ret = new BitSet(rows);
+            if (value) {
+                ret.set(0, rows);
+            }
+            return ret;
+        }
+
+        @Override
+        void addColumns(Set<String> columns) {
+        }
+
+        @Override
+        double cost(RowAdapter<?> adapter) {
+            return 0;
+        }
+
+        @Override
+        double defaultSelectivity() {
+            return value ? 1 : 0;
+        }
+
+        @Override
+        FilterExpression negate() {
+            return value ? FALSE : TRUE;
+        }
+
+        @Override
+        public String toString() {
+            return Boolean.toString(value);
+        }
+    }
+
+    static final class Comparison extends FilterExpression {
+        final FilterSpec spec;
+
+        Comparison(FilterSpec spec) {
+            this.spec = spec;
+        }
+
+        @Override
+        public <T extends Row> Predicate<T> compile(RowAdapter<T> adapter) {
+            FilterSpec folded = spec;
+            int handle = adapter.handle(spec.columnName);
+            if (isSubstringTest(adapter)) {
+                return new SubstringFilter<>(adapter, spec.columnName, true,
+                        ImmutableList.of(spec));
+            }
+            if (adapter.types.get(handle) == RowAdapter.CoerceType.TEXT &&
+                (spec.filterType == FilterSpec.FilterType.RE_MATCH ||
+                 spec.filterType == FilterSpec.FilterType.NOT_RE_MATCH)) {
+                String literal = literalOf(spec.rhs);
+                if (literal != null) {
+                    folded = new FilterSpec(spec.columnName,
+                            spec.filterType == FilterSpec.FilterType.RE_MATCH ?
+                            FilterSpec.FilterType.EQUALS : FilterSpec.FilterType.NOT_EQUALS,
+                            literal);
+                }
+            }
+            return new Table.RowFilter<>(adapter, folded);
+        }
+
+        @Override
+        public BitSet evaluate(Function<FilterSpec, BitSet> leaves, int rows) {
+            return leaves.apply(spec);
+        }
+
+        /** Whether this tests for a substring of a text column, per {@link SubstringFilter}. */
+        boolean isSubstringTest(RowAdapter<?> adapter) {
+            return adapter.types.get(adapter.handle(spec.columnName)) ==
+                   RowAdapter.CoerceType.TEXT && SubstringFilter.substringOf(spec) != null;
+        }
+
+        @Override
+        void addColumns(Set<String> columns) {
+            columns.add(spec.columnName);
+        }
+
+        @Override
+        double cost(RowAdapter<?> adapter) {
+            int handle = adapter.handle(spec.columnName);
+            boolean numeric = adapter.types.get(handle) == RowAdapter.CoerceType.NUMERIC;
+            double op;
+            switch (spec.filterType) {
+                case RE_MATCH:
+                case NOT_RE_MATCH:
+                    op = literalOf(spec.rhs) != null && !numeric ? 2 : 10;
+                    break;
+                case CONTAINS:
+                case NOT_CONTAINS:
+                    op = 4;
+                    break;
+                default:
+                    op = numeric ? 1 : 2;
+                    break;
+            }
+            return op * adapter.columnCost(handle);
+        }
+
+        @Override
+        double defaultSelectivity() {
+            switch (spec.filterType) {
+                case EQUALS:
+                    return 0.1;
+                case NOT_EQUALS:
+                    return 0.9;
+                case RE_MATCH:
+                case CONTAINS:
+                    return 0.25;
+                case NOT_RE_MATCH:
+                case NOT_CONTAINS:
+                    return 0.75;
+                default:
+                    return 1.0 / 3;
+            }
+        }
+
+        @Override
+        FilterExpression negate() {
+            return new Comparison(new FilterSpec(spec.columnName, negate(spec.filterType),
+                    spec.rhs));
+        }
+
+        private static FilterSpec.FilterType negate(FilterSpec.FilterType type) {
+            switch (type) {
+                case EQUALS:
+                    return FilterSpec.FilterType.NOT_EQUALS;
+                case NOT_EQUALS:
+                    return FilterSpec.FilterType.EQUALS;
+                case LESS:
+                    return FilterSpec.FilterType.GEQ;
+                case GEQ:
+                    return FilterSpec.FilterType.LESS;
+                case GREATER:
+                    return FilterSpec.FilterType.LEQ;
+                case LEQ:
+                    return FilterSpec.FilterType.GREATER;
+                case RE_MATCH:
+                    return FilterSpec.FilterType.NOT_RE_MATCH;
+                case NOT_RE_MATCH:
+                    return FilterSpec.FilterType.RE_MATCH;
+                case CONTAINS:
+                    return FilterSpec.FilterType.NOT_CONTAINS;
+                case NOT_CONTAINS:
+                    return FilterSpec.FilterType.CONTAINS;
+                default:
+                    throw new IllegalArgumentException("Bad filterType: " + type);
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (spec.filterType == FilterSpec.FilterType.NOT_CONTAINS) {
+                return "!(" + spec.columnName + " contains " + quote(spec.rhs) + ")";
+            }
+            return spec.columnName + " " + operator(spec.filterType) + " " + quote(spec.rhs);
+        }
+
+        private static String operator(FilterSpec.FilterType type) {
+            switch (type) {
+                case EQUALS:
+                    return "==";
+                case NOT_EQUALS:
+                    return "!=";
+                case LESS:
+                    return "<";
+                case LEQ:
+                    return "<=";
+                case GREATER:
+                    return ">";
+                case GEQ:
+                    return ">=";
+                case RE_MATCH:
+                    return "~";
+                case NOT_RE_MATCH:
+                    return "!~";
+                case CONTAINS:
+                    return "contains";
+                default:
+                    throw new IllegalArgumentException("Bad filterType: " + type);
+            }
+        }
+
+        /** Quotes the value, unless it would be read back the same as a bare word. */
+        private static String quote(String s) {
+            boolean bare = !s.isEmpty() && !s.equals("true") && !s.equals("false") &&
+                           !s.equals("contains");
+            for (int i = 0; i < s.length() && bare; i++) {
+                char c = s.charAt(i);
+                bare = !Character.isWhitespace(c) && Parser.SPECIAL_CHARS.indexOf(c) < 0;
+            }
+            if (bare) {
+                return s;
+            }
+            return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+    }
+
+    /** A conjunction ({@code and}) or disjunction of at least two children. */
+    static final class Junction extends FilterExpression {
+        final boolean and;
+        final List<FilterExpression> children;
+
+        private Junction(boolean and, List<FilterExpression> children) {
+            this.and = and;
+            this.children = ImmutableList.copyOf(children);
+        }
+
+        /**
+         * Combines the children, flattening nested junctions of the same kind and folding
+         * constants.
+         */
+        static FilterExpression of(boolean and, List<FilterExpression> children) {
+            List<FilterExpression> kept = new ArrayList<>();
+            for (FilterExpression child : children) {
+                if (child instanceof Constant) {
+                    if (((Constant) child).value != and) {
+                        // false && x, true || x
+                        return child;
+                    }
+                    // true && x, false || x
+                    continue;
+                }
+                if (child instanceof Junction && ((Junction) child).and == and) {
+                    kept.addAll(((Junction) child).children);
+                } else {
+                    kept.add(child);
+                }
+            }
+            if (kept.isEmpty()) {
+                return and ? Constant.TRUE : Constant.FALSE;
+            }
+            return kept.size() == 1 ? kept.get(0) : new Junction(and, kept);
+        }
+
+        @Override
+        public <T extends Row> Predicate<T> compile(RowAdapter<T> adapter) {
+            return compileAll(adapter, and, children);
+        }
+
+        @Override
+        public BitSet evaluate(Function<FilterSpec, BitSet> leaves, int rows) {
+            BitSet ret = null;
+            for (FilterExpression child : children) {
+                BitSet matched = child.evaluate(leaves, rows);
+                if (matched == null) {
+                    return null;
+                }
+                if (ret == null) {
+                    ret = matched;
+                } else if (and) {
+                    ret.and(matched);
+                } else {
+                    ret.or(matched);
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        void addColumns(Set<String> columns) {
+            for (FilterExpression child : children) {
+                child.addColumns(columns);
+            }
+        }
+
+        @Override
+        public List<FilterExpression> conjuncts() {
+            return and ? children : super.conjuncts();
+        }
+
+        @Override
+        double cost(RowAdapter<?> adapter) {
+            // Substring tests of the same column are compiled into one scan of it, per
+            // compileAll, which costs about as much as the dearest of them.
+            double ret = 0;
+            Map<String, Double> substringCosts = new LinkedHashMap<>();
+            for (FilterExpression child : children) {
+                double cost = child.cost(adapter);
+                if (child instanceof Comparison && ((Comparison) child).isSubstringTest(adapter)) {
+                    String column = ((Comparison) child).spec.columnName;
+                    Double prev = substringCosts.get(column);
+                    substringCosts.put(column, prev == null ? cost : Math.max(prev, cost));
+                } else {
+                    ret += cost;
+                }
+            }
+            for (double cost : substringCosts.values()) {
+                ret += cost;
+            }
+            return ret;
+        }
+
+        @Override
+        double defaultSelectivity() {
+            // Assuming the children are independent: the chance that all of them match, or for
+            // a disjunction, that none of them do.
+            double product = 1;
+            for (FilterExpression child : children) {
+                product *= and ? child.defaultSelectivity() : 1 - child.defaultSelectivity();
+            }
+            return and ? product : 1 - product;
+        }
+
+        @Override
+        FilterExpression negate() {
+            // De Morgan.
+            List<FilterExpression> negated = new ArrayList<>();
+            for (FilterExpression child : children) {
+                negated.add(child.negate());
+            }
+            return of(!and, negated);
+        }
+
+        @Override
+        public String toString() {
+            List<String> parts = new ArrayList<>();
+            for (FilterExpression child : children) {
+                parts.add(child instanceof Junction ? "(" + child + ")" : child.toString());
+            }
+            return Joiner.on(and ? " && " : " || ").join(parts);
+        }
+    }
+
+    /**
+     * Returns the conjuncts, but with the substring tests of each column of which there are
+     * several replaced, in place of the first, by their conjunction, which is compiled into a
+     * single {@link SubstringFilter}.
+     */
+    static List<FilterExpression> groupSubstringTests(RowAdapter<?> adapter,
+                                                      List<FilterExpression> conjuncts) {
+        Map<String, List<FilterExpression>> groups = new LinkedHashMap<>();
+        for (FilterExpression e : conjuncts) {
+            if (e instanceof Comparison && ((Comparison) e).isSubstringTest(adapter)) {
+                String column = ((Comparison) e).spec.columnName;
+                if (!groups.containsKey(column)) {
+                    groups.put(column, new ArrayList<FilterExpression>());
+                }
+                groups.get(column).add(e);
+            }
+        }
+        List<FilterExpression> ret = new ArrayList<>();
+        for (FilterExpression e : conjuncts) {
+            if (e instanceof Comparison && ((Comparison) e).isSubstringTest(adapter)) {
+                List<FilterExpression> group = groups.remove(((Comparison) e).spec.columnName);
+                if (group != null) {
+                    ret.add(group.size() == 1 ? group.get(0) : new Junction(true, group));
+                }
+            } else {
+                ret.add(e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Compiles the conjunction, or disjunction, of the expressions.  Substring tests of the
+     * same column are combined into one {@link SubstringFilter}, in place of the first of them.
+     */
+    static <T extends Row> Predicate<T> compileAll(RowAdapter<T> adapter, boolean and,
+                                                   List<FilterExpression> expressions) {
+        Map<String, List<FilterSpec>> substrings = new LinkedHashMap<>();
+        for (FilterExpression e : expressions) {
+            if (e instanceof Comparison && ((Comparison) e).isSubstringTest(adapter)) {
+                FilterSpec spec = ((Comparison) e).spec;
+                if (!substrings.containsKey(spec.columnName)) {
+                    substrings.put(spec.columnName, new ArrayList<FilterSpec>());
+                }
+                substrings.get(spec.columnName).add(spec);
+            }
+        }
+        List<Predicate<T>> compiled = new ArrayList<>();
+        for (FilterExpression e : expressions) {
+            if (e instanceof Comparison && ((Comparison) e).isSubstringTest(adapter)) {
+                String column = ((Comparison) e).spec.columnName;
+                List<FilterSpec> specs = substrings.remove(column);
+                if (specs != null) {
+                    compiled.add(new SubstringFilter<>(adapter, column, and, specs));
+                }
+            } else {
+                compiled.add(e.compile(adapter));
+            }
+        }
+        if (compiled.size() == 1) {
+            return compiled.get(0);
+        }
+        return and ? Predicates.and(compiled) : Predicates.or(compiled);
+    }
+
+    /**
+     * If the regex matches exactly one string, returns that string, or else null.  Only
+     * literal characters, and metacharacters escaped with a backslash, are recognized.
+     */
+    static String literalOf(String regex) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == regex.length()) {
+                    return null;
+                }
+                char next = regex.charAt(++i);
+                if (Character.isLetterOrDigit(next)) {
+                    // A character class, back reference, or the like.
+                    return null;
+                }
+                sb.append(next);
+            } else if ("[](){}.*+?^$|".indexOf(c) >= 0) {
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class Parser {
+        private static final String OPERATOR_CHARS = "=!<>~";
+        private static final String SPECIAL_CHARS = "()&|\"" + OPERATOR_CHARS;
+
+        private final String text;
+        private final List<String> tokens = new ArrayList<>();
+        /** Whether each token was a quoted string, and so is never an operator. */
+        private final List<Boolean> quoted = new ArrayList<>();
+        private int next;
+
+        Parser(String text) {
+            this.text = text;
+            tokenize();
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " in filter expression: " + text);
+        }
+
+        String peek() {
+            return next < tokens.size() ? tokens.get(next) : null;
+        }
+
+        private boolean peekIs(String token) {
+            return token.equals(peek()) && !quoted.get(next);
+        }
+
+        private String take() {
+            if (next >= tokens.size()) {
+                throw error("Unexpected end");
+            }
+            return tokens.get(next++);
+        }
+
+        FilterExpression parseOr() {
+            List<FilterExpression> children = new ArrayList<>();
+            children.add(parseAnd());
+            while (peekIs("||")) {
+                next++;
+                children.add(parseAnd());
+            }
+            return Junction.of(false, children);
+        }
+
+        private FilterExpression parseAnd() {
+            List<FilterExpression> children = new ArrayList<>();
+            children.add(parseUnary());
+            while (peekIs("&&")) {
+                next++;
+                children.add(parseUnary());
+            }
+            return Junction.of(true, children);
+        }
+
+        private FilterExpression parseUnary() {
+            if (peekIs("!")) {
+                next++;
+                return parseUnary().negate();
+            }
+            if (peekIs("(")) {
+                next++;
+                FilterExpression ret = parseOr();
+                if (!peekIs(")")) {
+                    throw error("Missing ')'");
+                }
+                next++;
+                return ret;
+            }
+            boolean wasQuoted = next < quoted.size() && quoted.get(next);
+            String column = take();
+            if (!wasQuoted &&
+                (peek() == null || peekIs(")") || peekIs("&&") || peekIs("||"))) {
+                switch (column) {
+                    case "true":
+                        return Constant.TRUE;
+                    case "false":
+                        return Constant.FALSE;
+                    default:
+                        break;
+                }
+            }
+            if (wasQuoted || isOperator(column)) {
+                throw error("Expected a column name, not '" + column + "'");
+            }
+            String op = take();
+            FilterSpec.FilterType type = quoted.get(next - 1) ? null : filterType(op);
+            if (type == null) {
+                throw error("Expected a comparison after '" + column + "', not '" + op + "'");
+            }
+            boolean valueQuoted = next < quoted.size() && quoted.get(next);
+            String value = take();
+            if (!valueQuoted && isOperator(value)) {
+                throw error("Expected a value after '" + op + "', not '" + value + "'");
+            }
+            return new Comparison(new FilterSpec(column, type, value));
+        }
+
+        private static boolean isOperator(String token) {
+            return SPECIAL_CHARS.indexOf(token.charAt(0)) >= 0;
+        }
+
+        private static FilterSpec.FilterType filterType(String op) {
+            switch (op) {
+                case "==":
+                case "=":
+                    return FilterSpec.FilterType.EQUALS;
+                case "!=":
+                    return FilterSpec.FilterType.NOT_EQUALS;
+                case "<":
+                    return FilterSpec.FilterType.LESS;
+                case "<=":
+                    return FilterSpec.FilterType.LEQ;
+                case ">":
+                    return FilterSpec.FilterType.GREATER;
+                case ">=":
+                    return FilterSpec.FilterType.GEQ;
+                case "~":
+                    return FilterSpec.FilterType.RE_MATCH;
+                case "!~":
+                    return FilterSpec.FilterType.NOT_RE_MATCH;
+                case "contains":
+                    return FilterSpec.FilterType.CONTAINS;
+                default:
+                    return null;
+            }
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '"') {
+                    StringBuilder sb = new StringBuilder();
+                    i++;
+                    while (true) {
+                        if (i >= text.length()) {
+                            throw error("Unterminated string");
+                        }
+                        c = text.charAt(i++);
+                        if (c == '"') {
+                            break;
+                        }
+                        if (c == '\\' && i < text.length() &&
+                            (text.charAt(i) == '"' || text.charAt(i) == '\\')) {
+                            c = text.charAt(i++);
+                        }
+                        sb.append(c);
+                    }
+                    add(sb.toString(), true);
+                } else if (c == '(' || c == ')') {
+                    add(String.valueOf(c), false);
+                    i++;
+                } else if (c == '&' || c == '|') {
+                    if (i + 1 >= text.length() || text.charAt(i + 1) != c) {
+                        throw error("Expected '" + c + c + "'");
+                    }
+                    add(text.substring(i, i + 2), false);
+                    i += 2;
+                } else if (OPERATOR_CHARS.indexOf(c) >= 0) {
+                    int start = i;
+                    while (i < text.length() && OPERATOR_CHARS.indexOf(text.charAt(i)) >= 0) {
+                        i++;
+                    }
+                    String ops = text.substring(start, i);
+                    // A run like "!!" or "!(" is a series of negations.
+                    if (ops.startsWith("!") && filterType(ops) == null) {
+                        add("!", false);
+                        i = start + 1;
+                    } else {
+                        add(ops, false);
+                    }
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i)) &&
+                           SPECIAL_CHARS.indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    add(text.substring(start, i), false);
+                }
+            }
+        }
+
+        private void add(String token, boolean isQuoted) {
+            tokens.add(token);
+            quoted.add(isQuoted);
+        }
+    }
+}
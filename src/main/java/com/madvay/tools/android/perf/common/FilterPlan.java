@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Predicate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A conjunction of row filters, ordered for evaluation in a single short-circuiting pass.
+ * <p>
+ * Each filter gets an estimated cost per row, from {@link RowAdapter#columnCost} and the kind
+ * of comparison (numeric comparisons are cheap, substring tests dearer and regexes dearest),
+ * and a selectivity, the fraction of rows it keeps.  Selectivity is measured on up to
+ * {@value #SAMPLE_SIZE} evenly spaced sample rows when there are rows to sample, and guessed
+ * from the comparison otherwise.  Filters run in ascending order of
+ * {@code cost / (1 - selectivity)}, which puts cheap filters that reject many rows first.
+ * <p>
+ * Compiled filters may memoize results, so a plan is not thread-safe; each thread should use
+ * its own {@link #copy}.
+ */
+public final class FilterPlan<T extends Row> implements Predicate<T> {
+
+    public static final int SAMPLE_SIZE = 1024;
+
+    private static final class Step<T> {
+        final FilterExpression filter;
+        final Predicate<T> predicate;
+        final double cost;
+        final double selectivity;
+
+        Step(FilterExpression filter, Predicate<T> predicate, double cost, double selectivity) {
+            this.filter = filter;
+            this.predicate = predicate;
+            this.cost = cost;
+            this.selectivity = selectivity;
+        }
+
+        double rank() {
+            return cost / Math.max(1 - selectivity, 1e-6);
+        }
+    }
+
+    private final RowAdapter<T> adapter;
+    private final List<Step<T>> steps;
+    private final int sampled;
+    private final int population;
+
+    private FilterPlan(RowAdapter<T> adapter, List<Step<T>> steps, int sampled, int population) {
+        this.adapter = adapter;
+        this.steps = steps;
+        this.sampled = sampled;
+        this.population = population;
+    }
+
+    /**
+     * @param filters the filters, all of which rows must match.  Top-level conjunctions are
+     *                planned as separate filters, except that substring tests of the same
+     *                column are planned, and evaluated, together.
+     * @param rows    the rows the filters will be applied to, from which to sample selectivity,
+     *                or null if they are not available up front.
+     */
+    public static <T extends Row> FilterPlan<T> plan(RowAdapter<T> adapter,
+                                                     List<FilterExpression> filters,
+                                                     List<? extends T> rows) {
+        List<T> sample = new ArrayList<>();
+        if (rows != null) {
+            int n = rows.size();
+            int count = Math.min(n, SAMPLE_SIZE);
+            for (int i = 0; i < count; i++) {
+                sample.add(rows.get((int) ((long) i * n / count)));
+            }
+        }
+        List<FilterExpression> conjuncts = new ArrayList<>();
+        for (FilterExpression filter : filters) {
+            conjuncts.addAll(filter.conjuncts());
+        }
+        conjuncts = FilterExpression.groupSubstringTests(adapter, conjuncts);
+        List<Step<T>> steps = new ArrayList<>();
+        for (FilterExpression conjunct : conjuncts) {
+            Predicate<T> predicate = conjunct.compile(adapter);
+            double selectivity;
+            if (sample.isEmpty()) {
+                selectivity = conjunct.defaultSelectivity();
+            } else {
+                int matched = 0;
+                for (T row : sample) {
+                    if (predicate.apply(row)) {
+                        matched++;
+                    }
+                }
+                selectivity = (double) matched / sample.size();
+            }
+            steps.add(new Step<>(conjunct, predicate, conjunct.cost(adapter), selectivity));
+        }
+        // A stable sort, so ties keep the order given.
+        Collections.sort(steps, new Comparator<Step<T>>() {
+            @Override
+            public int compare(Step<T> o1, Step<T> o2) {
+                return Double.compare(o1.rank(), o2.rank());
+            }
+        });
+        return new FilterPlan<>(adapter, steps, sample.size(), rows == null ? -1 : rows.size());
+    }
+
+    /** The same plan, in the same order, with its filters compiled afresh. */
+    public FilterPlan<T> copy() {
+        List<Step<T>> copied = new ArrayList<>(steps.size());
+        for (Step<T> step : steps) {
+            copied.add(new Step<>(step.filter, step.filter.<T>compile(adapter), step.cost,
+                    step.selectivity));
+        }
+        return new FilterPlan<>(adapter, copied, sampled, population);
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    @Override
+    public boolean apply(T input) {
+        for (Step<T> step : steps) {
+            if (!step.predicate.apply(input)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** A description of the plan, for {@code --explain}. */
+    public String explain() {
+        if (steps.isEmpty()) {
+            return String.format("Filter plan: no filters%n");
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Filter plan: %d filter(s), evaluated in this order, in one pass%n",
+                steps.size()));
+        if (sampled > 0) {
+            sb.append(String.format("  Selectivity measured on %d of %d rows%n", sampled,
+                    population));
+        } else {
+            sb.append(String.format("  Selectivity estimated; no rows to sample%n"));
+        }
+        sb.append(String.format("  %3s %8s %11s  %s%n", "#", "cost", "selectivity", "filter"));
+        int i = 1;
+        for (Step<T> step : steps) {
+            sb.append(String.format("  %3d %8.1f %11.3f  %s%n", i++, step.cost, step.selectivity,
+                    step.filter));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Predicate;
+
+import java.util.BitSet;
+
+/**
+ * A {@link Predicate} on stack frames, applied to frames interned in a {@link TracePool}.
+ * <p>
+ * A trace transform applies its predicate to every frame of every trace, but there are far
+ * fewer distinct frames than frame occurrences.  So the predicate is evaluated once per frame
+ * id, and the result kept in a bitset; after that, testing a frame is a bit lookup.
+ * <p>
+ * Results are kept for one pool at a time, and discarded when a frame from another pool is
+ * tested.  Not thread-safe.
+ */
+public final class FramePredicate {
+
+    private final Predicate<StackTraceElement> spec;
+    private TracePool pool;
+    /** The frame ids for which {@link #spec} has been evaluated. */
+    private final BitSet evaluated = new BitSet();
+    /** The frame ids for which {@link #spec} is true. */
+    private final BitSet matches = new BitSet();
+
+    public FramePredicate(Predicate<StackTraceElement> spec) {
+        this.spec = spec;
+    }
+
+    public boolean apply(TracePool pool, int frameId) {
+        if (pool != this.pool) {
+            this.pool = pool;
+            evaluated.clear();
+            matches.clear();
+        }
+        if (!evaluated.get(frameId)) {
+            evaluated.set(frameId);
+            if (spec.apply(pool.getFrame(frameId))) {
+                matches.set(frameId);
+            }
+        }
+        return matches.get(frameId);
+    }
+}
@@ -0,0 +1,766 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Groups rows by one column and computes one or more {@link Metric}s of each group, as the rows
+ * are pushed to it, in a single pass.  It holds no rows: each group's value is interned to a
+ * dense id, in the order in which groups were first seen, and each metric accumulates into
+ * arrays indexed by it.  Memory use is proportional to the number of groups, not of rows,
+ * except for distinct counts (proportional to the distinct group and value pairs) and
+ * percentiles (to the distinct values per group).  Distinct counts may instead be estimated
+ * with a {@link HyperLogLog} sketch per group, in constant memory per group.
+ * <p>
+ * Partial aggregations of consecutive ranges of rows can be {@link #merge merged}, which
+ * {@link #acceptAll} uses to aggregate in parallel.  Not thread-safe.
+ */
+public final class GroupAggregator<T extends Row> implements RowSink<T> {
+
+    /** Rows per task are at least this many, or else parallelism costs more than it saves. */
+    private static final int MIN_ROWS_PER_TASK = 1 << 14;
+
+    private final RowAdapter<T> adapter;
+    private final String groupByColumn;
+    private final List<Metric> metrics;
+    /** Whether the one metric column is named "weight", per {@link Table#groupAndAggregate}. */
+    private final boolean weightColumn;
+    /** 0 if distinct counts are exact, or else the precision of their sketches. */
+    private final int precision;
+    private final ValueIds<T> groups;
+    private final List<Accumulator<T>> accumulators = new ArrayList<>();
+    /** The number of groups the accumulators have room for. */
+    private int capacity = 64;
+
+    public GroupAggregator(RowAdapter<T> adapter, String groupByColumn, String weightColumn,
+                           Table.AggregationType aggregationType) {
+        this(adapter, groupByColumn, weightColumn, aggregationType, 0);
+    }
+
+    /**
+     * @param precision for {@link Table.AggregationType#UNIQUE}, 0 to count distinct weights
+     *                  exactly, or else the {@link HyperLogLog} precision with which to
+     *                  estimate them.  Ignored for other aggregation types.
+     */
+    public GroupAggregator(RowAdapter<T> adapter, String groupByColumn, String weightColumn,
+                           Table.AggregationType aggregationType, int precision) {
+        this(adapter, groupByColumn,
+                ImmutableList.of(Metric.of(aggregationType, weightColumn)),
+                aggregationType == Table.AggregationType.UNIQUE ? precision : 0, true);
+    }
+
+    /**
+     * @param metrics   the metrics to compute, each a column of the aggregated table, named by
+     *                  its text form, in order and before the group column
+     * @param precision 0 to count distinct values exactly, or else the {@link HyperLogLog}
+     *                  precision with which to estimate them
+     */
+    public GroupAggregator(RowAdapter<T> adapter, String groupByColumn, List<Metric> metrics,
+                           int precision) {
+        this(adapter, groupByColumn, metrics, precision, false);
+    }
+
+    private GroupAggregator(RowAdapter<T> adapter, String groupByColumn, List<Metric> metrics,
+                            int precision, boolean weightColumn) {
+        if (metrics.isEmpty()) {
+            throw new IllegalArgumentException("No metrics given");
+        }
+        if (precision != 0) {
+            HyperLogLog.checkPrecision(precision);
+        }
+        this.adapter = adapter;
+        this.groupByColumn = groupByColumn;
+        this.metrics = ImmutableList.copyOf(metrics);
+        this.weightColumn = weightColumn;
+        this.precision = precision;
+        groups = new ValueIds<>(adapter, adapter.handle(groupByColumn));
+        for (Metric metric : metrics) {
+            accumulators.add(newAccumulator(metric));
+        }
+    }
+
+    private Accumulator<T> newAccumulator(Metric metric) {
+        if (metric.kind == Metric.Kind.COUNT) {
+            return new Counter<>();
+        }
+        int handle = adapter.handle(metric.column);
+        boolean numeric = adapter.types.get(handle) == RowAdapter.CoerceType.NUMERIC;
+        if (metric.kind == Metric.Kind.UNIQUE) {
+            return precision != 0 ? new DistinctSketches<>(adapter, handle, numeric, precision) :
+                   new DistinctCounter<>(adapter, handle, numeric);
+        }
+        if (!numeric) {
+            throw new IllegalArgumentException(metric + " needs a numeric column");
+        }
+        switch (metric.kind) {
+            case SUM:
+                return new Summer<>(adapter, handle, false);
+            case AVG:
+                return new Summer<>(adapter, handle, true);
+            case MIN:
+                return new Extreme<>(adapter, handle, false);
+            case MAX:
+                return new Extreme<>(adapter, handle, true);
+            case PERCENTILE:
+                return new Percentile<>(adapter, handle, metric.percentile);
+            default:
+                throw new IllegalArgumentException("Bad metric: " + metric);
+        }
+    }
+
+    @Override
+    public void accept(T row) {
+        int group = groups.id(row);
+        ensureCapacity(group);
+        for (int i = 0; i < accumulators.size(); i++) {
+            accumulators.get(i).accept(group, row);
+        }
+    }
+
+    private void ensureCapacity(int group) {
+        if (group >= capacity) {
+            capacity = Math.max(capacity * 2, group + 1);
+            for (Accumulator<T> accumulator : accumulators) {
+                accumulator.grow(capacity);
+            }
+        }
+    }
+
+    /** Whether distinct counts are estimated rather than exact. */
+    public boolean isApproximate() {
+        return precision != 0;
+    }
+
+    /**
+     * Adds the other's rows to this, as though they had been pushed to this after its own.  It
+     * must have the same columns, metrics and precision.  {@code other} is not changed.
+     */
+    public void merge(GroupAggregator<T> other) {
+        if (other.adapter != adapter || other.groups.handle != groups.handle ||
+            !other.metrics.equals(metrics) || other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge different aggregations");
+        }
+        int[] groupMap = new int[other.groups.size()];
+        for (int g = 0; g < groupMap.length; g++) {
+            groupMap[g] = groups.intern(other.groups.value(g));
+            ensureCapacity(groupMap[g]);
+        }
+        for (int i = 0; i < accumulators.size(); i++) {
+            accumulators.get(i).merge(other.accumulators.get(i), groupMap);
+        }
+    }
+
+    /**
+     * Pushes the rows to this, in parallel on a fork-join pool of the given number of threads.
+     * Each task pushes a range of the rows into its own partial aggregator, through its own sink
+     * from {@code chain}, such as a chain of filters, and the partials are merged in the order
+     * of their ranges.  So the result is the same as pushing the rows in order through one such
+     * sink.
+     * <p>
+     * The rows, and reading them through the adapter, must be safe from several threads at
+     * once, and so must the sinks from {@code chain}, except that each is only used by one.
+     *
+     * @param chain returns a new sink which pushes rows on to the given one
+     */
+    public void acceptAll(final List<? extends T> rows, int threads,
+                          final Function<RowSink<T>, RowSink<T>> chain) {
+        int n = rows.size();
+        if (threads <= 1 || n < 2 * MIN_ROWS_PER_TASK || !(rows instanceof RandomAccess)) {
+            RowSink<T> head = chain.apply(this);
+            for (T row : rows) {
+                head.accept(row);
+            }
+            return;
+        }
+        final int rowsPerTask = Math.max(MIN_ROWS_PER_TASK, n / (4 * threads) + 1);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            merge(pool.invoke(new Partial(rows, 0, n, rowsPerTask, chain)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** A fresh aggregator with the same columns, metrics and precision. */
+    private GroupAggregator<T> newPartial() {
+        return new GroupAggregator<>(adapter, groupByColumn, metrics, precision, weightColumn);
+    }
+
+    /** Aggregates rows {@code [from, to)}, splitting the range in halves down to task size. */
+    private final class Partial extends RecursiveTask<GroupAggregator<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends T> rows;
+        private final int from;
+        private final int to;
+        private final int rowsPerTask;
+        private final Function<RowSink<T>, RowSink<T>> chain;
+
+        Partial(List<? extends T> rows, int from, int to, int rowsPerTask,
+                Function<RowSink<T>, RowSink<T>> chain) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.rowsPerTask = rowsPerTask;
+            this.chain = chain;
+        }
+
+        @Override
+        protected GroupAggregator<T> compute() {
+            if (to - from <= rowsPerTask) {
+                GroupAggregator<T> ret = newPartial();
+                RowSink<T> head = chain.apply(ret);
+                for (int i = from; i < to; i++) {
+                    head.accept(rows.get(i));
+                }
+                return ret;
+            }
+            int mid = (from + to) >>> 1;
+            Partial left = new Partial(rows, from, mid, rowsPerTask, chain);
+            Partial right = new Partial(rows, mid, to, rowsPerTask, chain);
+            invokeAll(left, right);
+            GroupAggregator<T> ret = left.join();
+            ret.merge(right.join());
+            return ret;
+        }
+    }
+
+    /** One {@link AggregateRow} per group seen so far. */
+    public Table<AggregateRow> toTable() {
+        List<AggregateRow> rows = new ArrayList<>(groups.size());
+        for (int g = 0; g < groups.size(); g++) {
+            long[] values = new long[accumulators.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = accumulators.get(i).value(g);
+            }
+            rows.add(new AggregateRow(groups.value(g), values));
+        }
+        List<String> names = new ArrayList<>();
+        if (weightColumn) {
+            names.add("weight");
+        } else {
+            for (Metric metric : metrics) {
+                names.add(metric.toString());
+            }
+        }
+        final RowAdapter<AggregateRow> adap = new AggregateRow.Adapter(names, groups.numeric);
+        return new Table<AggregateRow>(rows) {
+            @Override
+            public RowAdapter<AggregateRow> getAdapter() {
+                return adap;
+            }
+        };
+    }
+
+    /** Accumulates one metric for every group. */
+    private abstract static class Accumulator<T extends Row> {
+        /** Makes room for groups with ids below the capacity. */
+        abstract void grow(int capacity);
+
+        abstract void accept(int group, T row);
+
+        /** Adds the other's groups, whose ids map to this one's through {@code groupMap}. */
+        abstract void merge(Accumulator<T> other, int[] groupMap);
+
+        abstract long value(int group);
+    }
+
+    private static final class Counter<T extends Row> extends Accumulator<T> {
+        private long[] counts = new long[64];
+
+        @Override
+        void grow(int capacity) {
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void accept(int group, T row) {
+            counts[group]++;
+        }
+
+        @Override
+        void merge(Accumulator<T> other, int[] groupMap) {
+            long[] others = ((Counter<T>) other).counts;
+            for (int g = 0; g < groupMap.length; g++) {
+                counts[groupMap[g]] += others[g];
+            }
+        }
+
+        @Override
+        long value(int group) {
+            return counts[group];
+        }
+    }
+
+    /** Sums, or averages, a numeric column. */
+    private static final class Summer<T extends Row> extends Accumulator<T> {
+        private final RowAdapter<T> adapter;
+        private final int handle;
+        private final boolean average;
+        private long[] sums = new long[64];
+        private long[] counts = new long[64];
+
+        Summer(RowAdapter<T> adapter, int handle, boolean average) {
+            this.adapter = adapter;
+            this.handle = handle;
+            this.average = average;
+        }
+
+        @Override
+        void grow(int capacity) {
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void accept(int group, T row) {
+            sums[group] += adapter.getLong(row, handle);
+            counts[group]++;
+        }
+
+        @Override
+        void merge(Accumulator<T> other, int[] groupMap) {
+            Summer<T> o = (Summer<T>) other;
+            for (int g = 0; g < groupMap.length; g++) {
+                sums[groupMap[g]] += o.sums[g];
+                counts[groupMap[g]] += o.counts[g];
+            }
+        }
+
+        @Override
+        long value(int group) {
+            return average ? Math.round((double) sums[group] / counts[group]) : sums[group];
+        }
+    }
+
+    /** The minimum or maximum of a numeric column. */
+    private static final class Extreme<T extends Row> extends Accumulator<T> {
+        private final RowAdapter<T> adapter;
+        private final int handle;
+        private final boolean max;
+        private long[] values = new long[0];
+
+        Extreme(RowAdapter<T> adapter, int handle, boolean max) {
+            this.adapter = adapter;
+            this.handle = handle;
+            this.max = max;
+            grow(64);
+        }
+
+        @Override
+        void grow(int capacity) {
+            int from = values.length;
+            values = Arrays.copyOf(values, capacity);
+            Arrays.fill(values, from, capacity, max ? Long.MIN_VALUE : Long.MAX_VALUE);
+        }
+
+        @Override
+        void accept(int group, T row) {
+            add(group, adapter.getLong(row, handle));
+        }
+
+        private void add(int group, long v) {
+            if (max ? v > values[group] : v < values[group]) {
+                values[group] = v;
+            }
+        }
+
+        @Override
+        void merge(Accumulator<T> other, int[] groupMap) {
+            long[] others = ((Extreme<T>) other).values;
+            for (int g = 0; g < groupMap.length; g++) {
+                add(groupMap[g], others[g]);
+            }
+        }
+
+        @Override
+        long value(int group) {
+            return values[group];
+        }
+    }
+
+    /** Counts the distinct values of a column exactly. */
+    private static final class DistinctCounter<T extends Row> extends Accumulator<T> {
+        private final RowAdapter<T> adapter;
+        private final int handle;
+        /** The text values seen, or null if the column is numeric. */
+        private final ValueIds<T> values;
+        /** The distinct (group id, value) pairs seen. */
+        private final PairSet seen = new PairSet();
+        private long[] counts = new long[64];
+
+        DistinctCounter(RowAdapter<T> adapter, int handle, boolean numeric) {
+            this.adapter = adapter;
+            this.handle = handle;
+            values = numeric ? null : new ValueIds<>(adapter, handle);
+        }
+
+        @Override
+        void grow(int capacity) {
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void accept(int group, T row) {
+            long v = values == null ? adapter.getLong(row, handle) : values.id(row);
+            if (seen.add(group, v)) {
+                counts[group]++;
+            }
+        }
+
+        @Override
+        void merge(Accumulator<T> other, int[] groupMap) {
+            DistinctCounter<T> o = (DistinctCounter<T>) other;
+            // Distinct counts do not add up; the distinct pairs do.
+            int[] valueMap = null;
+            if (values != null) {
+                valueMap = new int[o.values.size()];
+                for (int v = 0; v < valueMap.length; v++) {
+                    valueMap[v] = values.intern(o.values.value(v));
+                }
+            }
+            PairSet pairs = o.seen;
+            for (int i = 0; i < pairs.used.length; i++) {
+                if (pairs.used[i]) {
+                    int group = groupMap[pairs.firsts[i]];
+                    long v = pairs.seconds[i];
+                    if (valueMap != null) {
+                        v = valueMap[(int) v];
+                    }
+                    if (seen.add(group, v)) {
+                        counts[group]++;
+                    }
+                }
+            }
+        }
+
+        @Override
+        long value(int group) {
+            return counts[group];
+        }
+    }
+
+    /** Estimates the distinct values of a column with a {@link HyperLogLog} per group. */
+    private static final class DistinctSketches<T extends Row> extends Accumulator<T> {
+        private final RowAdapter<T> adapter;
+        private final int handle;
+        private final boolean numeric;
+        private final int precision;
+        private HyperLogLog[] sketches = new HyperLogLog[64];
+        /** The hashes of text values, by their value key. */
+        private final ObjectIntMap<Object> keyHashIds;
+        private long[] keyHashes;
+
+        DistinctSketches(RowAdapter<T> adapter, int handle, boolean numeric, int precision) {
+            this.adapter = adapter;
+            this.handle = handle;
+            this.numeric = numeric;
+            this.precision = precision;
+            keyHashIds = numeric ? null : new ObjectIntMap<>(64, true);
+            keyHashes = numeric ? null : new long[64];
+        }
+
+        @Override
+        void grow(int capacity) {
+            sketches = Arrays.copyOf(sketches, capacity);
+        }
+
+        private HyperLogLog sketch(int group) {
+            HyperLogLog ret = sketches[group];
+            if (ret == null) {
+                ret = sketches[group] = new HyperLogLog(precision);
+            }
+            return ret;
+        }
+
+        @Override
+        void accept(int group, T row) {
+            sketch(group).add(hash(row));
+        }
+
+        /** The value's hash, for which text is only hashed once per value key. */
+        private long hash(T row) {
+            if (numeric) {
+                return HyperLogLog.hash(adapter.getLong(row, handle));
+            }
+            Object key = adapter.getValueKey(row, handle);
+            if (key == null) {
+                return HyperLogLog.hash(adapter.getString(row, handle));
+            }
+            int id = keyHashIds.get(key, -1);
+            if (id < 0) {
+                id = keyHashIds.size();
+                if (id == keyHashes.length) {
+                    keyHashes = Arrays.copyOf(keyHashes, id * 2);
+                }
+                keyHashes[id] = HyperLogLog.hash(adapter.getString(row, handle));
+                keyHashIds.put(key, id);
+            }
+            return keyHashes[id];
+        }
+
+        @Override
+        void merge(Accumulator<T> other, int[] groupMap) {
+            HyperLogLog[] others = ((DistinctSketches<T>) other).sketches;
+            for (int g = 0; g < groupMap.length; g++) {
+                sketch(groupMap[g]).merge(others[g]);
+            }
+        }
+
+        @Override
+        long value(int group) {
+            return sketches[group].estimate();
+        }
+    }
+
+    /**
+     * A percentile of a numeric column, by the nearest-rank method, from an exact histogram of
+     * each group's values.
+     */
+    private static final class Percentile<T extends Row> extends Accumulator<T> {
+        private final RowAdapter<T> adapter;
+        private final int handle;
+        private final int percentile;
+        private Histogram[] histograms = new Histogram[64];
+
+        Percentile(RowAdapter<T> adapter, int handle, int percentile) {
+            this.adapter = adapter;
+            this.handle = handle;
+            this.percentile = percentile;
+        }
+
+        @Override
+        void grow(int capacity) {
+            histograms = Arrays.copyOf(histograms, capacity);
+        }
+
+        private Histogram histogram(int group) {
+            Histogram ret = histograms[group];
+            if (ret == null) {
+                ret = histograms[group] = new Histogram();
+            }
+            return ret;
+        }
+
+        @Override
+        void accept(int group, T row) {
+            histogram(group).add(adapter.getLong(row, handle), 1);
+        }
+
+        @Override
+        void merge(Accumulator<T> other, int[] groupMap) {
+            Histogram[] others = ((Percentile<T>) other).histograms;
+            for (int g = 0; g < groupMap.length; g++) {
+                Histogram from = others[g];
+                Histogram to = histogram(groupMap[g]);
+                for (int i = 0; i < from.size; i++) {
+                    to.add(from.values[i], from.counts[i]);
+                }
+            }
+        }
+
+        @Override
+        long value(int group) {
+            return histograms[group].percentile(percentile);
+        }
+    }
+
+    /** Counts of distinct values. */
+    private static final class Histogram {
+        private final LongIntMap slots = new LongIntMap(16);
+        private long[] values = new long[16];
+        private long[] counts = new long[16];
+        private int size;
+        private long total;
+
+        void add(long value, long count) {
+            int slot = slots.get(value, -1);
+            if (slot < 0) {
+                slot = size++;
+                if (slot == values.length) {
+                    values = Arrays.copyOf(values, slot * 2);
+                    counts = Arrays.copyOf(counts, slot * 2);
+                }
+                values[slot] = value;
+                slots.put(value, slot);
+            }
+            counts[slot] += count;
+            total += count;
+        }
+
+        /** The least value such that at least {@code percentile}% of values are at most it. */
+        long percentile(int percentile) {
+            long rank = Math.max(1, (percentile * total + 99) / 100);
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            long seen = 0;
+            for (long value : sorted) {
+                seen += counts[slots.get(value, -1)];
+                if (seen >= rank) {
+                    return value;
+                }
+            }
+            return sorted[size - 1];
+        }
+    }
+
+    /**
+     * Interns the values of a column to dense ids, in order of first appearance.  Text values
+     * are first looked up by the adapter's {@link RowAdapter#getValueKey value key}, if any, so
+     * a value is only turned into text once.
+     */
+    private static final class ValueIds<T extends Row> {
+        final RowAdapter<T> adapter;
+        final int handle;
+        final boolean numeric;
+        private final LongIntMap longIds;
+        private long[] longValues;
+        private final ObjectIntMap<Object> keyIds;
+        private final ObjectIntMap<String> stringIds;
+        private String[] stringValues;
+        private int size;
+
+        ValueIds(RowAdapter<T> adapter, int handle) {
+            this.adapter = adapter;
+            this.handle = handle;
+            numeric = adapter.types.get(handle) == RowAdapter.CoerceType.NUMERIC;
+            longIds = numeric ? new LongIntMap(64) : null;
+            longValues = numeric ? new long[64] : null;
+            keyIds = numeric ? null : new ObjectIntMap<>(64, true);
+            stringIds = numeric ? null : new ObjectIntMap<String>(64, false);
+            stringValues = numeric ? null : new String[64];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int id(T row) {
+            if (numeric) {
+                return internLong(adapter.getLong(row, handle));
+            }
+            Object key = adapter.getValueKey(row, handle);
+            if (key != null) {
+                int id = keyIds.get(key, -1);
+                if (id >= 0) {
+                    return id;
+                }
+            }
+            int id = internString(adapter.getString(row, handle));
+            if (key != null) {
+                keyIds.put(key, id);
+            }
+            return id;
+        }
+
+        /** The id of a value, per {@link #value}. */
+        int intern(Object value) {
+            return numeric ? internLong((Long) value) : internString((String) value);
+        }
+
+        private int internLong(long v) {
+            int id = longIds.get(v, -1);
+            if (id < 0) {
+                id = size++;
+                if (id == longValues.length) {
+                    longValues = Arrays.copyOf(longValues, id * 2);
+                }
+                longValues[id] = v;
+                longIds.put(v, id);
+            }
+            return id;
+        }
+
+        private int internString(String v) {
+            int id = stringIds.get(v, -1);
+            if (id < 0) {
+                id = size++;
+                if (id == stringValues.length) {
+                    stringValues = Arrays.copyOf(stringValues, id * 2);
+                }
+                stringValues[id] = v;
+                stringIds.put(v, id);
+            }
+            return id;
+        }
+
+        /** The value with the id: a {@code Long} if the column is numeric, or else text. */
+        Object value(int id) {
+            return numeric ? (Object) longValues[id] : stringValues[id];
+        }
+    }
+
+    /** An open-addressing set of (int, long) pairs. */
+    private static final class PairSet {
+        private static final float LOAD = 0.6f;
+
+        private int[] firsts = new int[64];
+        private long[] seconds = new long[64];
+        private boolean[] used = new boolean[64];
+        private int size;
+        private int mask = 63;
+
+        /** Adds the pair, returning whether it was not already present. */
+        boolean add(int first, long second) {
+            int i = slot(first, second);
+            while (used[i]) {
+                if (firsts[i] == first && seconds[i] == second) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            used[i] = true;
+            firsts[i] = first;
+            seconds[i] = second;
+            if (++size > LOAD * used.length) {
+                rehash();
+            }
+            return true;
+        }
+
+        private int slot(int first, long second) {
+            long h = (second + first * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        private void rehash() {
+            int[] oldFirsts = firsts;
+            long[] oldSeconds = seconds;
+            boolean[] oldUsed = used;
+            firsts = new int[oldUsed.length * 2];
+            seconds = new long[oldUsed.length * 2];
+            used = new boolean[oldUsed.length * 2];
+            mask = used.length - 1;
+            size = 0;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    add(oldFirsts[i], oldSeconds[i]);
+                }
+            }
+        }
+    }
+}
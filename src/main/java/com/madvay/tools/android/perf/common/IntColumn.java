@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import java.util.Arrays;
+
+/**
+ * A growable {@code int[]}, used to build the columns of a {@link ColumnarRows}.
+ */
+public final class IntColumn {
+    private int[] data;
+    private int size;
+
+    public IntColumn() {
+        this(16);
+    }
+
+    public IntColumn(int expected) {
+        data = new int[Math.max(expected, 1)];
+    }
+
+    public void add(int v) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[size++] = v;
+    }
+
+    public int get(int i) {
+        return data[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** A copy trimmed to exactly {@link #size()} elements. */
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
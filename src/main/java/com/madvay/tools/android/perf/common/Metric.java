@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An aggregate of each group's rows, computed by {@link GroupAggregator}.  In text, one of:
+ * <ul>
+ * <li>{@code count}, the number of rows;</li>
+ * <li>{@code sum(c)}, {@code avg(c)}, {@code min(c)} or {@code max(c)} of numeric column
+ * {@code c}, where the average is rounded to the nearest integer;</li>
+ * <li>{@code unique(c)}, the number of distinct values of column {@code c};</li>
+ * <li>{@code pN(c)}, the Nth percentile of numeric column {@code c}, for N from 1 to 100, by
+ * the nearest-rank method.</li>
+ * </ul>
+ * The text is also the name of the metric's column in the aggregated table.
+ */
+public final class Metric {
+
+    public enum Kind {
+        COUNT, SUM, AVG, MIN, MAX, UNIQUE, PERCENTILE
+    }
+
+    private static final Pattern SPEC = Pattern.compile("(\\w+)\\((\\w+)\\)");
+    private static final Pattern PERCENTILE = Pattern.compile("p(\\d{1,3})");
+
+    public final Kind kind;
+    /** The column aggregated, or null for {@link Kind#COUNT}. */
+    public final String column;
+    /** The percentile, for {@link Kind#PERCENTILE}, or else 0. */
+    public final int percentile;
+
+    private Metric(Kind kind, String column, int percentile) {
+        this.kind = kind;
+        this.column = column;
+        this.percentile = percentile;
+    }
+
+    public static Metric count() {
+        return new Metric(Kind.COUNT, null, 0);
+    }
+
+    /** A metric of the column, of any kind but {@link Kind#COUNT} or {@link Kind#PERCENTILE}. */
+    public static Metric of(Kind kind, String column) {
+        if (kind == Kind.COUNT || kind == Kind.PERCENTILE || column == null) {
+            throw new IllegalArgumentException("Bad metric: " + kind + " of " + column);
+        }
+        return new Metric(kind, column, 0);
+    }
+
+    public static Metric percentile(int percentile, String column) {
+        if (percentile < 1 || percentile > 100 || column == null) {
+            throw new IllegalArgumentException("Bad percentile: " + percentile + " of " + column);
+        }
+        return new Metric(Kind.PERCENTILE, column, percentile);
+    }
+
+    /** The metric computed by {@link Table#groupAndAggregate} for the aggregation type. */
+    public static Metric of(Table.AggregationType aggregationType, String weightColumn) {
+        switch (aggregationType) {
+            case COUNT:
+                return count();
+            case SUM:
+                return of(Kind.SUM, weightColumn);
+            case UNIQUE:
+                return of(Kind.UNIQUE, weightColumn);
+            default:
+                throw new IllegalArgumentException("Bad aggregationType: " + aggregationType);
+        }
+    }
+
+    /** Parses the text form, per the class documentation. */
+    public static Metric parse(String spec) {
+        if (spec.equals("count")) {
+            return count();
+        }
+        Matcher m = SPEC.matcher(spec);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Bad metric: " + spec);
+        }
+        String name = m.group(1);
+        String column = m.group(2);
+        switch (name) {
+            case "sum":
+                return of(Kind.SUM, column);
+            case "avg":
+                return of(Kind.AVG, column);
+            case "min":
+                return of(Kind.MIN, column);
+            case "max":
+                return of(Kind.MAX, column);
+            case "unique":
+                return of(Kind.UNIQUE, column);
+            default:
+                Matcher p = PERCENTILE.matcher(name);
+                if (!p.matches()) {
+                    throw new IllegalArgumentException("Bad metric: " + spec);
+                }
+                return percentile(Integer.parseInt(p.group(1)), column);
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case COUNT:
+                return "count";
+            case PERCENTILE:
+                return "p" + percentile + "(" + column + ")";
+            default:
+                return kind.name().toLowerCase() + "(" + column + ")";
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Metric && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
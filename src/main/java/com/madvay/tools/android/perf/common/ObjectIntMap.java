@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+/**
+ * An open-addressing map from non-null objects to {@code int} values, which compares keys by
+ * {@code equals} or, optionally, by identity.  Not thread-safe.
+ */
+public final class ObjectIntMap<K> {
+    private static final float LOAD = 0.6f;
+
+    private final boolean identity;
+    private Object[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    /** @param identity whether to compare keys with {@code ==} rather than {@code equals} */
+    public ObjectIntMap(int expected, boolean identity) {
+        this.identity = identity;
+        int cap = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD)) - 1) << 1;
+        keys = new Object[cap];
+        values = new int[cap];
+        mask = cap - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the value for the key, or {@code missing} if there is no such key. */
+    public int get(K key, int missing) {
+        int i = slot(key);
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k == key || (!identity && k.equals(key))) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    public void put(K key, int value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Null key");
+        }
+        int i = slot(key);
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k == key || (!identity && k.equals(key))) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > LOAD * keys.length) {
+            rehash();
+        }
+    }
+
+    private int slot(Object key) {
+        int h = (identity ? System.identityHashCode(key) : key.hashCode()) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash() {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new Object[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                put((K) oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -19,38 +19,71 @@ package com.madvay.tools.android.perf.common;
 
 import com.google.common.base.Function;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  *
  */
 public class PrettyAggregateRowOutput implements Function<AggregateRow, String> {
 
-    private final int weightCols, groupCols;
+    private final int groupCols;
+    private final int[] metricCols;
+    /** The metric column names, or null if there is only "weight", which has no header. */
+    private final List<String> header;
 
     public PrettyAggregateRowOutput(Table<AggregateRow> tab) {
-        int w = 0, g = 0;
+        List<String> columns = tab.getAdapter().columns;
+        List<String> metrics = columns.subList(0, columns.size() - 1);
+        header = metrics.equals(Collections.singletonList("weight")) ? null : metrics;
+        metricCols = new int[metrics.size()];
+        int g = header == null ? 0 : "group".length();
+        for (int i = 0; i < metricCols.length; i++) {
+            metricCols[i] = header == null ? 0 : metrics.get(i).length();
+        }
         for (AggregateRow row : tab.getRows()) {
-            w = Math.max(w, String.valueOf(row.value).length());
+            for (int i = 0; i < metricCols.length; i++) {
+                metricCols[i] = Math.max(metricCols[i], String.valueOf(row.getMetric(i)).length());
+            }
             g = Math.max(g, row.group.toString().length());
         }
-        weightCols = w + 2;
+        for (int i = 0; i < metricCols.length; i++) {
+            metricCols[i] += 2;
+        }
         groupCols = g + 2;
     }
 
+    /** A line naming the columns, or nothing if the only metric is the weight. */
+    public String header() {
+        if (header == null) {
+            return "";
+        }
+        return line("group", header.toArray(new String[header.size()]));
+    }
+
     @Override
     public String apply(AggregateRow input) {
+        String[] metrics = new String[metricCols.length];
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = Long.toString(input.getMetric(i));
+        }
+        return line(input.group.toString(), metrics);
+    }
+
+    private String line(String gs, String[] metrics) {
         StringBuilder sb = new StringBuilder();
-        String gs = input.group.toString();
         sb.append(gs);
         for (int w = gs.length(); w < groupCols; w++) {
             sb.append(' ');
         }
-        sb.append(" | ");
-
-        String ws = Long.toString(input.value);
-        for (int w = ws.length(); w < weightCols; w++) {
-            sb.append(' ');
+        for (int i = 0; i < metrics.length; i++) {
+            sb.append(" | ");
+            String ws = metrics[i];
+            for (int w = ws.length(); w < metricCols[i]; w++) {
+                sb.append(' ');
+            }
+            sb.append(ws);
         }
-        sb.append(ws);
         sb.append('\n');
         return sb.toString();
     }
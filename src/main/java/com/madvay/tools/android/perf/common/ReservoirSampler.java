@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Keeps a uniform random sample of up to {@code size} of the rows pushed to it, in one pass
+ * and without knowing the number of rows up front, or optionally that many per value of a
+ * column, i.e. a sample stratified by the column.
+ * <p>
+ * Uses Li's Algorithm L ("Reservoir-Sampling Algorithms of Time Complexity
+ * O(n(1 + log(N/n)))", 1994): once the reservoir is full, the number of rows to skip before
+ * the next one to keep is drawn directly, so the random number generator is only consulted
+ * for rows which are kept.  For a given seed and order of rows, the sample is always the same.
+ * Not thread-safe.
+ */
+public final class ReservoirSampler<T extends Row> implements RowSink<T> {
+
+    /** The seed used by {@link Table#sample} and {@link Table#samplePer}. */
+    public static final long DEFAULT_SEED = 3493;
+
+    private final int size;
+    private final Random random;
+    private final RowAdapter<T> adapter;
+    private final int handle;
+    private final boolean numeric;
+    private final LongIntMap longIds;
+    private final ObjectIntMap<Object> keyIds;
+    private final ObjectIntMap<String> stringIds;
+    private final List<Stratum> strata = new ArrayList<>();
+    /** The number of rows pushed so far. */
+    private long position;
+
+    /** A sample of up to {@code size} of all the rows. */
+    public ReservoirSampler(int size, long seed) {
+        this(size, seed, null, null);
+    }
+
+    /** A sample of up to {@code size} rows per value of the column. */
+    public ReservoirSampler(int size, long seed, RowAdapter<T> adapter, String column) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Sample size must not be negative: " + size);
+        }
+        this.size = size;
+        random = new Random(seed);
+        this.adapter = adapter;
+        handle = adapter == null ? -1 : adapter.handle(column);
+        numeric = adapter != null && adapter.types.get(handle) == RowAdapter.CoerceType.NUMERIC;
+        longIds = numeric ? new LongIntMap(64) : null;
+        keyIds = adapter != null && !numeric ? new ObjectIntMap<>(64, true) : null;
+        stringIds = adapter != null && !numeric ? new ObjectIntMap<String>(64, false) : null;
+        if (adapter == null) {
+            strata.add(new Stratum(size));
+        }
+    }
+
+    @Override
+    public void accept(T row) {
+        long at = position++;
+        if (size == 0) {
+            return;
+        }
+        Stratum stratum = stratum(row);
+        int slot = stratum.offer(random);
+        if (slot >= 0) {
+            stratum.keep(slot, row, at);
+        }
+    }
+
+    private Stratum stratum(T row) {
+        if (adapter == null) {
+            return strata.get(0);
+        }
+        int id;
+        if (numeric) {
+            long v = adapter.getLong(row, handle);
+            id = longIds.get(v, -1);
+            if (id < 0) {
+                id = newStratum();
+                longIds.put(v, id);
+            }
+            return strata.get(id);
+        }
+        Object key = adapter.getValueKey(row, handle);
+        id = key == null ? -1 : keyIds.get(key, -1);
+        if (id < 0) {
+            String v = adapter.getString(row, handle);
+            id = stringIds.get(v, -1);
+            if (id < 0) {
+                id = newStratum();
+                stringIds.put(v, id);
+            }
+            if (key != null) {
+                keyIds.put(key, id);
+            }
+        }
+        return strata.get(id);
+    }
+
+    private int newStratum() {
+        strata.add(new Stratum(size));
+        return strata.size() - 1;
+    }
+
+    private int kept() {
+        int ret = 0;
+        for (Stratum stratum : strata) {
+            ret += stratum.filled;
+        }
+        return ret;
+    }
+
+    /** The positions, counting from 0, of the sampled rows among the rows pushed, ascending. */
+    public long[] getPositions() {
+        long[] ret = new long[kept()];
+        int i = 0;
+        for (Stratum stratum : strata) {
+            System.arraycopy(stratum.positions, 0, ret, i, stratum.filled);
+            i += stratum.filled;
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /** The sampled rows, in the order they were pushed. */
+    @SuppressWarnings("unchecked")
+    public List<T> getSample() {
+        final List<Long> positions = new ArrayList<>();
+        final List<T> rows = new ArrayList<>();
+        for (Stratum stratum : strata) {
+            for (int s = 0; s < stratum.filled; s++) {
+                positions.add(stratum.positions[s]);
+                rows.add((T) stratum.rows[s]);
+            }
+        }
+        Integer[] order = new Integer[rows.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return positions.get(o1).compareTo(positions.get(o2));
+            }
+        });
+        List<T> ret = new ArrayList<>(order.length);
+        for (int i : order) {
+            ret.add(rows.get(i));
+        }
+        return ret;
+    }
+
+    /** One reservoir, which grows by doubling up to its size as it fills. */
+    private static final class Stratum {
+        final int size;
+        Object[] rows;
+        long[] positions;
+        int filled;
+        /** The number of rows offered so far. */
+        long seen;
+        /** The count of offered rows at which the next row is kept, once full. */
+        long next;
+        double w;
+
+        Stratum(int size) {
+            this.size = size;
+            rows = new Object[Math.min(size, 16)];
+            positions = new long[rows.length];
+        }
+
+        void keep(int slot, Object row, long position) {
+            if (slot == rows.length) {
+                int capacity = (int) Math.min(size, 2L * rows.length);
+                rows = Arrays.copyOf(rows, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+            }
+            rows[slot] = row;
+            positions[slot] = position;
+        }
+
+        /** The slot in which to keep the row just offered, or -1 if it is not kept. */
+        int offer(Random random) {
+            seen++;
+            int k = size;
+            if (filled < k) {
+                if (++filled == k) {
+                    w = Math.exp(Math.log(uniform(random)) / k);
+                    next = seen + skip(random) + 1;
+                }
+                return filled - 1;
+            }
+            if (seen < next) {
+                return -1;
+            }
+            int slot = random.nextInt(k);
+            w *= Math.exp(Math.log(uniform(random)) / k);
+            next = seen + skip(random) + 1;
+            return slot;
+        }
+
+        private long skip(Random random) {
+            double skip = Math.floor(Math.log(uniform(random)) / Math.log(1 - w));
+            return (long) Math.max(0, Math.min(skip, 1e18));
+        }
+
+        /** A uniform random number in (0, 1]. */
+        private static double uniform(Random random) {
+            return 1 - random.nextDouble();
+        }
+    }
+}
@@ -42,4 +42,46 @@ public abstract class RowAdapter<T extends Row> {
     }
 
     public abstract Object get(T row, String column);
+
+    /**
+     * Resolves a column name, once, to the handle used by the typed accessors: its index in
+     * {@link #columns}.
+     */
+    public final int handle(String column) {
+        int i = columns.indexOf(column);
+        if (i < 0) {
+            throw new IllegalArgumentException("Unknown column: " + column);
+        }
+        return i;
+    }
+
+    /**
+     * The value of a {@link CoerceType#NUMERIC} column.  Adapters should override this, and
+     * {@link #getString}, to read the row directly rather than through {@link #get}.
+     */
+    public long getLong(T row, int handle) {
+        return Long.parseLong(get(row, columns.get(handle)).toString());
+    }
+
+    /**
+     * The relative cost of reading the column through {@link #getString}, for planning filters;
+     * 1 for a field of the row.  Adapters should override this for derived columns.
+     */
+    public int columnCost(int handle) {
+        return 1;
+    }
+
+    /**
+     * An object identifying the row's value of the column, for memoizing results computed from
+     * it: rows with the identical ({@code ==}) key have equal values.  Null, the default, if
+     * there is no such key cheaper to get than the value.
+     */
+    public Object getValueKey(T row, int handle) {
+        return null;
+    }
+
+    /** The value of any column, as text. */
+    public String getString(T row, int handle) {
+        return get(row, columns.get(handle)).toString();
+    }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A push-based query which fuses trace transforms, trace splitting and row filters with a
+ * terminal {@link RowSink}, such as a {@link GroupAggregator}, into a single pass over the rows.
+ * Each row is pushed through every stage before the next is read, so no intermediate list is
+ * built, and the rows may be streamed straight out of a parser.
+ * <p>
+ * Each stage has the same semantics as the {@link TraceTransformableTable} or {@link Table}
+ * method of the same name, and stages run in the order they were added.
+ * <p>
+ * Aggregation may run on several threads when no stage transforms rows, since rows with new
+ * traces are interned into a shared {@link TracePool}.
+ */
+public final class RowPipeline<T extends TraceTransformableRow> {
+
+    private interface Stage<T> {
+        RowSink<T> wrap(RowSink<T> next);
+    }
+
+    private final TraceTransformableTable<T> table;
+    private final List<Stage<T>> stages = new ArrayList<>();
+    private int transformingStages;
+
+    /**
+     * @param table supplies the {@link RowAdapter} and creates rows with new traces.  Its own
+     *              rows are not used.
+     */
+    public RowPipeline(TraceTransformableTable<T> table) {
+        this.table = table;
+    }
+
+    public RowPipeline<T> transformTraces(TraceTransformers.TT tt) {
+        return transformTraces(ImmutableList.of(tt));
+    }
+
+    /** Adds the transforms, in order, as a single {@link CompiledTraceTransform} stage. */
+    public RowPipeline<T> transformTraces(List<? extends TraceTransformers.TT> tts) {
+        final CompiledTraceTransform transform = TraceTransformers.compile(tts);
+        if (transform.isIdentity()) {
+            return this;
+        }
+        transformingStages++;
+        stages.add(new Stage<T>() {
+            @Override
+            public RowSink<T> wrap(final RowSink<T> next) {
+                return new RowSink<T>() {
+                    @Override
+                    public void accept(T row) {
+                        next.accept(table.newRowWithTrace(row, transform));
+                    }
+                };
+            }
+        });
+        return this;
+    }
+
+    public RowPipeline<T> splitTraces() {
+        transformingStages++;
+        stages.add(new Stage<T>() {
+            @Override
+            public RowSink<T> wrap(final RowSink<T> next) {
+                return new RowSink<T>() {
+                    @Override
+                    public void accept(T row) {
+                        for (StackTraceElement ste : row.getTransformableTrace()) {
+                            next.accept(table.newRowWithTrace(row, ImmutableList.of(ste)));
+                        }
+                    }
+                };
+            }
+        });
+        return this;
+    }
+
+    /** Whether any stage so far changes rows or adds new ones, rather than just dropping rows. */
+    public boolean transformsRows() {
+        return transformingStages > 0;
+    }
+
+    public RowPipeline<T> matching(FilterSpec spec) {
+        return matching(new Table.RowFilter<>(table.getAdapter(), spec));
+    }
+
+    /** Like {@link #matching(Predicate)}, but with a {@link FilterPlan#copy} per pass. */
+    public RowPipeline<T> matching(final FilterPlan<T> plan) {
+        stages.add(new Stage<T>() {
+            @Override
+            public RowSink<T> wrap(final RowSink<T> next) {
+                final FilterPlan<T> filter = plan.copy();
+                return new RowSink<T>() {
+                    @Override
+                    public void accept(T row) {
+                        if (filter.apply(row)) {
+                            next.accept(row);
+                        }
+                    }
+                };
+            }
+        });
+        return this;
+    }
+
+    /** {@code filter} must be thread-safe if aggregating on several threads. */
+    public RowPipeline<T> matching(final Predicate<? super T> filter) {
+        stages.add(new Stage<T>() {
+            @Override
+            public RowSink<T> wrap(final RowSink<T> next) {
+                return new RowSink<T>() {
+                    @Override
+                    public void accept(T row) {
+                        if (filter.apply(row)) {
+                            next.accept(row);
+                        }
+                    }
+                };
+            }
+        });
+        return this;
+    }
+
+    /** Pushes every row through the stages, in order, and into the sink. */
+    public void run(Iterable<? extends T> rows, RowSink<T> sink) {
+        RowSink<T> head = wrap(sink);
+        for (T row : rows) {
+            head.accept(row);
+        }
+    }
+
+    /** A new chain of the stages, in order, ending in the sink. */
+    private RowSink<T> wrap(RowSink<T> sink) {
+        RowSink<T> head = sink;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            head = stages.get(i).wrap(head);
+        }
+        return head;
+    }
+
+    /** Runs the pipeline into a {@link GroupAggregator}, per {@link Table#groupAndAggregate}. */
+    public Table<AggregateRow> groupAndAggregate(Iterable<? extends T> rows,
+                                                 String groupByColumn, String weightColumn,
+                                                 Table.AggregationType aggregationType) {
+        return groupAndAggregate(rows, groupByColumn, weightColumn, aggregationType, 1);
+    }
+
+    /**
+     * Like {@link #groupAndAggregate(Iterable, String, String, Table.AggregationType)}, but
+     * split across up to {@code threads} threads, per {@link GroupAggregator#acceptAll}, when
+     * the rows are a list whose traces are not {@linkplain TraceColumnarRows#hasLazyTraces()
+     * decoded lazily}, and no stage transforms rows.  The result is the same either way.
+     */
+    public Table<AggregateRow> groupAndAggregate(Iterable<? extends T> rows,
+                                                 String groupByColumn, String weightColumn,
+                                                 Table.AggregationType aggregationType,
+                                                 int threads) {
+        return groupAndAggregate(rows, groupByColumn, weightColumn, aggregationType, threads, 0);
+    }
+
+    /** The same, with UNIQUE estimated at {@code precision} unless it is 0, per {@link Table}. */
+    public Table<AggregateRow> groupAndAggregate(Iterable<? extends T> rows,
+                                                 String groupByColumn, String weightColumn,
+                                                 Table.AggregationType aggregationType,
+                                                 int threads, int precision) {
+        return groupAndAggregate(rows, new GroupAggregator<>(table.getAdapter(), groupByColumn,
+                weightColumn, aggregationType, precision), threads);
+    }
+
+    /** Runs the pipeline into a {@link GroupAggregator} of the metrics, per {@link Table}. */
+    public Table<AggregateRow> groupAndAggregate(Iterable<? extends T> rows,
+                                                 String groupByColumn, List<Metric> metrics,
+                                                 int threads, int precision) {
+        return groupAndAggregate(rows, new GroupAggregator<>(table.getAdapter(), groupByColumn,
+                metrics, precision), threads);
+    }
+
+    private Table<AggregateRow> groupAndAggregate(Iterable<? extends T> rows,
+                                                  GroupAggregator<T> aggregator, int threads) {
+        if (rows instanceof List && !transformsRows()) {
+            if (rows instanceof TraceColumnarRows
+                    && ((TraceColumnarRows<?>) rows).hasLazyTraces()) {
+                // Resolving a trace interns into the pool, which other workers would be reading.
+                threads = 1;
+            }
+            aggregator.acceptAll((List<? extends T>) rows, threads,
+                    new Function<RowSink<T>, RowSink<T>>() {
+                        @Override
+                        public RowSink<T> apply(RowSink<T> input) {
+                            return wrap(input);
+                        }
+                    });
+        } else {
+            run(rows, aggregator);
+        }
+        return aggregator.toTable();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns dense integer codes to distinct strings, for dictionary-encoded columns.
+ * Not thread-safe.
+ */
+public final class StringDictionary {
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    public int intern(String s) {
+        Integer code = codes.get(s);
+        if (code == null) {
+            code = values.size();
+            values.add(s);
+            codes.put(s, code);
+        }
+        return code;
+    }
+
+    public String get(int code) {
+        return values.get(code);
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Predicate;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The conjunction or disjunction of substring tests on one text column: {@code contains}, and
+ * regexes of the form {@code .*literal.*}, either of which may be negated.  The column value
+ * is scanned once, by an {@link AhoCorasick} automaton of all the substrings, rather than once
+ * per test.
+ * <p>
+ * If the adapter gives {@link RowAdapter#getValueKey value keys} for the column, results are
+ * memoized per key, so each distinct value (e.g. each distinct stack trace) is only
+ * stringified and scanned once.  Not thread-safe.
+ */
+final class SubstringFilter<T extends Row> implements Predicate<T> {
+
+    /** The memo is cleared when it grows this large, to bound the keys it keeps alive. */
+    private static final int MEMO_LIMIT = 1 << 16;
+
+    private final RowAdapter<T> adapter;
+    private final int handle;
+    private final boolean and;
+    private final AhoCorasick matcher;
+    /** Per test, whether it is negated.  Test {@code i} looks for pattern {@code i}. */
+    private final boolean[] negated;
+    /** The tests as given, for values which the automaton does not handle. */
+    private final List<Predicate<T>> fallback = new ArrayList<>();
+    private final Map<Object, Boolean> memo = new IdentityHashMap<>();
+    private final BitSet found = new BitSet();
+
+    /** @param specs tests on the column, each with a {@link #substringOf} */
+    SubstringFilter(RowAdapter<T> adapter, String column, boolean and, List<FilterSpec> specs) {
+        this.adapter = adapter;
+        this.handle = adapter.handle(column);
+        this.and = and;
+        List<String> patterns = new ArrayList<>();
+        negated = new boolean[specs.size()];
+        for (int i = 0; i < negated.length; i++) {
+            FilterSpec spec = specs.get(i);
+            patterns.add(substringOf(spec));
+            negated[i] = spec.filterType == FilterSpec.FilterType.NOT_CONTAINS ||
+                         spec.filterType == FilterSpec.FilterType.NOT_RE_MATCH;
+            fallback.add(new Table.RowFilter<>(adapter, spec));
+        }
+        matcher = new AhoCorasick(patterns);
+    }
+
+    /**
+     * If the test is for a substring of a text column value, returns the substring, or else
+     * null.
+     */
+    static String substringOf(FilterSpec spec) {
+        switch (spec.filterType) {
+            case CONTAINS:
+            case NOT_CONTAINS:
+                return spec.rhs;
+            case RE_MATCH:
+            case NOT_RE_MATCH: {
+                String regex = spec.rhs;
+                if (regex.length() < 4 || !regex.startsWith(".*") || !regex.endsWith(".*")) {
+                    return null;
+                }
+                return FilterExpression.literalOf(regex.substring(2, regex.length() - 2));
+            }
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public boolean apply(T input) {
+        Object key = adapter.getValueKey(input, handle);
+        if (key == null) {
+            return test(input);
+        }
+        Boolean ret = memo.get(key);
+        if (ret == null) {
+            if (memo.size() >= MEMO_LIMIT) {
+                memo.clear();
+            }
+            ret = test(input);
+            memo.put(key, ret);
+        }
+        return ret;
+    }
+
+    private boolean test(T input) {
+        String value = adapter.getString(input, handle);
+        if (hasLineTerminator(value)) {
+            // A regex's '.' does not match these, so a substring is not enough.
+            for (Predicate<T> test : fallback) {
+                if (test.apply(input) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+        found.clear();
+        matcher.find(value, found);
+        for (int i = 0; i < negated.length; i++) {
+            if ((found.get(i) != negated[i]) != and) {
+                return !and;
+            }
+        }
+        return and;
+    }
+
+    private static boolean hasLineTerminator(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -17,15 +17,13 @@
 
 package com.madvay.tools.android.perf.common;
 
-import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.*;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.Set;
+import java.util.RandomAccess;
 import java.util.regex.Pattern;
 
 /**
@@ -49,7 +47,63 @@ public abstract class Table<T extends Row> {
     public abstract RowAdapter<T> getAdapter();
 
 
+    /**
+     * A stable sort on the columns, each prefixed with a hyphen if descending, per
+     * {@link ColumnSort}.
+     */
     public void sortOn(List<String> cols) {
+        List<T> from = rows instanceof RandomAccess ? rows : new ArrayList<>(rows);
+        int[] order = ColumnSort.sortedIndexes(from, getAdapter(), cols);
+        if (from instanceof ColumnarRows) {
+            rows = ((ColumnarRows<T>) from).select(order, order.length);
+        } else {
+            List<T> nextRows = Lists.newArrayListWithCapacity(order.length);
+            for (int i : order) {
+                nextRows.add(from.get(i));
+            }
+            rows = nextRows;
+        }
+    }
+
+    /**
+     * Keeps only the first {@code limit} rows of {@link #sortOn}, without sorting the rest, in
+     * {@code O(n log limit)} time.  A negative limit keeps every row.
+     */
+    public void sortOn(List<String> cols, int limit) {
+        if (limit < 0 || limit >= rows.size()) {
+            sortOn(cols);
+            return;
+        }
+        Ordering<T> order = ordering(cols);
+        if (rows instanceof ColumnarRows) {
+            rows = ((ColumnarRows<T>) rows).leastOf(order, limit);
+        } else {
+            List<T> from = rows instanceof RandomAccess ? rows : new ArrayList<>(rows);
+            List<T> nextRows = Lists.newArrayListWithCapacity(limit);
+            for (int i : TopK.leastIndexes(from, order, limit)) {
+                nextRows.add(from.get(i));
+            }
+            rows = nextRows;
+        }
+    }
+
+    /** Keeps only the first {@code limit} rows.  A negative limit keeps every row. */
+    public void limit(int limit) {
+        if (limit < 0 || limit >= rows.size()) {
+            return;
+        }
+        if (rows instanceof ColumnarRows) {
+            int[] picked = new int[limit];
+            for (int i = 0; i < limit; i++) {
+                picked[i] = i;
+            }
+            rows = ((ColumnarRows<T>) rows).select(picked, limit);
+        } else {
+            rows = Lists.newArrayList(rows.subList(0, limit));
+        }
+    }
+
+    private Ordering<T> ordering(List<String> cols) {
         Ordering<T> order = null;
         for (String colSpec : cols) {
             String col = colSpec.startsWith("-") ? colSpec.substring(1) : colSpec;
@@ -63,30 +117,58 @@ public abstract class Table<T extends Row> {
                 order = order.compound(cur);
             }
         }
-        rows = order.sortedCopy(rows);
+        return order;
     }
 
+    /**
+     * Keeps a random sample of {@code n} rows, in their order, per {@link ReservoirSampler}.  A
+     * negative {@code n} keeps every row.
+     */
     public void sample(int n) {
         if (n < 0 || n >= rows.size()) {
             return;
         }
-        List<T> nextRows = Lists.newArrayList();
-        Random rnd = new Random(3493);
-        while (n > 0) {
-            T row = null;
-            do {
-                int i = rnd.nextInt(rows.size());
-                row = rows.get(i);
-            } while (nextRows.contains(row));
-            nextRows.add(row);
-            n--;
+        sample(new ReservoirSampler<T>(n, ReservoirSampler.DEFAULT_SEED));
+    }
+
+    /**
+     * Keeps a random sample of up to {@code n} rows per value of the column, in their order.  A
+     * negative {@code n} keeps every row.
+     */
+    public void samplePer(String column, int n) {
+        if (n < 0) {
+            return;
+        }
+        sample(new ReservoirSampler<>(n, ReservoirSampler.DEFAULT_SEED, getAdapter(), column));
+    }
+
+    private void sample(ReservoirSampler<T> sampler) {
+        for (T row : rows) {
+            sampler.accept(row);
+        }
+        if (rows instanceof ColumnarRows) {
+            long[] positions = sampler.getPositions();
+            int[] picked = new int[positions.length];
+            for (int i = 0; i < picked.length; i++) {
+                picked[i] = (int) positions[i];
+            }
+            rows = ((ColumnarRows<T>) rows).select(picked, picked.length);
+        } else {
+            rows = sampler.getSample();
         }
-        rows = nextRows;
     }
 
     public void matching(FilterSpec spec) {
-        final FilterSpec filterSpec = spec;
-        rows = Lists.newArrayList(Collections2.filter(rows, new RowFilter(filterSpec)));
+        matching(new RowFilter<>(getAdapter(), spec));
+    }
+
+    /** Keeps only the rows matching the predicate, e.g. a compiled {@link FilterExpression}. */
+    public void matching(Predicate<? super T> filter) {
+        if (rows instanceof ColumnarRows) {
+            rows = ((ColumnarRows<T>) rows).filter(filter);
+        } else {
+            rows = Lists.newArrayList(Collections2.filter(rows, filter));
+        }
     }
 
     public enum AggregationType {
@@ -101,82 +183,83 @@ public abstract class Table<T extends Row> {
     public Table<AggregateRow> groupAndAggregate(final String groupByColumn,
                                                  final String weightColumn,
                                                  final AggregationType aggregationType) {
-        final RowAdapter<T> adapter = getAdapter();
-        final boolean groupNumeric = adapter.types.get(adapter.columns.indexOf(groupByColumn)) ==
-                                     RowAdapter.CoerceType.NUMERIC;
-        boolean weightNumeric = adapter.types.get(adapter.columns.indexOf(weightColumn)) ==
-                                RowAdapter.CoerceType.NUMERIC;
-        ImmutableListMultimap<Object, T> indexed = Multimaps.index(rows, new Function<T, Object>() {
-            @Override
-            public Object apply(T input) {
-                return adapter.get(input, groupByColumn).toString();
-            }
-        });
-        Map<Object, Long> map = Maps.transformEntries(Multimaps.asMap(indexed),
-                new Maps.EntryTransformer<Object, List<T>, Long>() {
-                    @Override
-                    public Long transformEntry(Object key, List<T> value) {
-                        switch (aggregationType) {
-                            case COUNT:
-                                return (long) value.size();
-                            case SUM: {
-                                long l = 0;
-                                for (T t : value) {
-                                    l += Long.parseLong(adapter.get(t, weightColumn).toString());
-                                }
-                                return l;
-                            }
-                            case UNIQUE: {
-                                Set<String> set = new HashSet<>();
-                                for (T t : value) {
-                                    set.add(adapter.get(t, weightColumn).toString());
-                                }
-                                return (long) set.size();
-                            }
-                        }
-                        throw new IllegalArgumentException();
-                    }
-                });
-        List<AggregateRow> newRows = Lists.newArrayList(Iterables
-                .transform(map.entrySet(), new Function<Map.Entry<Object, Long>, AggregateRow>() {
-                    @Override
-                    public AggregateRow apply(Map.Entry<Object, Long> input) {
-                        return new AggregateRow(input.getValue(), input.getKey());
-                    }
-                }));
-        Table<AggregateRow> ret = new Table<AggregateRow>(newRows) {
-            final RowAdapter<AggregateRow> adap = new AggregateRow.Adapter(groupNumeric);
-
-            @Override
-            public RowAdapter<AggregateRow> getAdapter() {
-                return adap;
-            }
-        };
-        return ret;
+        return groupAndAggregate(groupByColumn, weightColumn, aggregationType, 1);
+    }
+
+    /**
+     * Like {@link #groupAndAggregate(String, String, AggregationType)}, but split across up to
+     * {@code threads} threads, per {@link GroupAggregator#acceptAll}.
+     */
+    public Table<AggregateRow> groupAndAggregate(final String groupByColumn,
+                                                 final String weightColumn,
+                                                 final AggregationType aggregationType,
+                                                 int threads) {
+        return groupAndAggregate(groupByColumn, weightColumn, aggregationType, threads, 0);
+    }
+
+    /**
+     * Like {@link #groupAndAggregate(String, String, AggregationType, int)}, but with
+     * {@link AggregationType#UNIQUE} estimated by a {@link HyperLogLog} per group of the given
+     * precision, unless it is 0.
+     */
+    public Table<AggregateRow> groupAndAggregate(final String groupByColumn,
+                                                 final String weightColumn,
+                                                 final AggregationType aggregationType,
+                                                 int threads, int precision) {
+        return groupAndAggregate(new GroupAggregator<>(getAdapter(), groupByColumn,
+                weightColumn, aggregationType, precision), threads);
+    }
+
+    /**
+     * Groups the rows by the column, with a column per metric, computed in one pass over the
+     * rows on up to {@code threads} threads.  Distinct counts are estimated by a
+     * {@link HyperLogLog} per group of the given precision, unless it is 0.
+     */
+    public Table<AggregateRow> groupAndAggregate(String groupByColumn, List<Metric> metrics,
+                                                 int threads, int precision) {
+        return groupAndAggregate(
+                new GroupAggregator<>(getAdapter(), groupByColumn, metrics, precision), threads);
+    }
+
+    private Table<AggregateRow> groupAndAggregate(GroupAggregator<T> aggregator, int threads) {
+        aggregator.acceptAll(rows, threads, Functions.<RowSink<T>>identity());
+        return aggregator.toTable();
     }
 
     private final class ColumnOrdering extends Ordering<T> {
 
-        private final String col;
+        private final RowAdapter<T> adapter = getAdapter();
+        private final int handle;
+        private final boolean numeric;
 
         public ColumnOrdering(String col) {
-            this.col = col;
+            handle = adapter.handle(col);
+            numeric = adapter.types.get(handle) == RowAdapter.CoerceType.NUMERIC;
         }
 
         @Override
         public int compare(T left, T right) {
-            Comparable l = (Comparable) getAdapter().get(left, col);
-            Comparable r = (Comparable) getAdapter().get(right, col);
-            return Ordering.natural().compare(l, r);
+            if (numeric) {
+                return Long.compare(adapter.getLong(left, handle), adapter.getLong(right, handle));
+            }
+            return adapter.getString(left, handle).compareTo(adapter.getString(right, handle));
         }
     }
 
-    private final class RowFilter implements Predicate<T> {
+    static final class RowFilter<T extends Row> implements Predicate<T> {
+        private final RowAdapter<T> adapter;
+        private final int handle;
+        private final boolean numeric;
+        private final long rhsLong;
         private final Pattern pat;
         private final FilterSpec filterSpec;
 
-        public RowFilter(FilterSpec filterSpec) {
+        RowFilter(RowAdapter<T> adapter, FilterSpec filterSpec) {
+            this.adapter = adapter;
             this.filterSpec = filterSpec;
+            handle = adapter.handle(filterSpec.columnName);
+            numeric = adapter.types.get(handle) == RowAdapter.CoerceType.NUMERIC;
+            rhsLong = numeric ? Long.parseLong(filterSpec.rhs) : 0;
             pat = filterSpec.filterType == FilterSpec.FilterType.RE_MATCH ||
                   filterSpec.filterType == FilterSpec.FilterType.NOT_RE_MATCH ?
                   Pattern.compile(filterSpec.rhs) : null;
@@ -184,26 +267,20 @@ public abstract class Table<T extends Row> {
 
         @Override
         public boolean apply(T input) {
-            RowAdapter<T> adapter = getAdapter();
-            Object lhsRaw = adapter.get(input, filterSpec.columnName);
-            String lhsStr = lhsRaw.toString();
-            int i = adapter.columns.indexOf(filterSpec.columnName);
-            switch (adapter.types.get(i)) {
-                case NUMERIC: {
-                    long lhs = Long.parseLong(lhsStr);
-                    long rhs = Long.parseLong(filterSpec.rhs);
-                    long c = Long.compare(lhs, rhs);
-                    return doCompare(lhsStr, c, filterSpec.rhs);
-                }
-                case TEXT: {
-                    return doCompare(lhsStr, lhsStr.compareTo(filterSpec.rhs), filterSpec.rhs);
-                }
+            switch (filterSpec.filterType) {
+                case RE_MATCH:
+                    return pat.matcher(lhsString(input)).matches();
+                case NOT_RE_MATCH:
+                    return !pat.matcher(lhsString(input)).matches();
+                case CONTAINS:
+                    return lhsString(input).contains(filterSpec.rhs);
+                case NOT_CONTAINS:
+                    return !lhsString(input).contains(filterSpec.rhs);
                 default:
-                    throw new IllegalArgumentException("Bad coerceType: " + adapter.types.get(i));
+                    break;
             }
-        }
-
-        private boolean doCompare(String lhsStr, long c, String rhsStr) {
+            int c = numeric ? Long.compare(adapter.getLong(input, handle), rhsLong) :
+                    adapter.getString(input, handle).compareTo(filterSpec.rhs);
             switch (filterSpec.filterType) {
                 case GEQ:
                     return c >= 0;
@@ -217,17 +294,14 @@ public abstract class Table<T extends Row> {
                     return c == 0;
                 case NOT_EQUALS:
                     return c != 0;
-                case RE_MATCH:
-                    return pat.matcher(lhsStr).matches();
-                case NOT_RE_MATCH:
-                    return !pat.matcher(lhsStr).matches();
-                case CONTAINS:
-                    return lhsStr.contains(rhsStr);
-                case NOT_CONTAINS:
-                    return !lhsStr.contains(rhsStr);
                 default:
                     throw new IllegalArgumentException("Bad filterType: " + filterSpec.filterType);
             }
         }
+
+        private String lhsString(T input) {
+            return numeric ? Long.toString(adapter.getLong(input, handle)) :
+                   adapter.getString(input, handle);
+        }
     }
 }
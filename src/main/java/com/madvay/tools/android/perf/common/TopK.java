@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Selects the first {@code k} rows of a stable sort, without sorting all of them: a bounded
+ * max-heap holds the indexes of the {@code k} least rows seen so far, so selection takes
+ * {@code O(n log k)} comparisons and {@code O(k)} memory.  Ties are broken by index, so the
+ * result is exactly the head of the stable sort.
+ */
+final class TopK {
+
+    private TopK() {
+    }
+
+    /**
+     * The indexes of the least {@code min(k, rows.size())} rows, in sorted order.
+     *
+     * @param rows should be {@link java.util.RandomAccess}
+     */
+    static <T> int[] leastIndexes(List<? extends T> rows, Comparator<? super T> comparator,
+                                  int k) {
+        int n = rows.size();
+        int[] heap = new int[Math.min(k, n)];
+        if (heap.length == 0) {
+            return heap;
+        }
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (size < heap.length) {
+                heap[size] = i;
+                siftUp(rows, comparator, heap, size++);
+            } else if (compare(rows, comparator, i, heap[0]) < 0) {
+                heap[0] = i;
+                siftDown(rows, comparator, heap, 0, size);
+            }
+        }
+        // Heapsort: the greatest goes last.
+        for (int end = size - 1; end > 0; end--) {
+            int top = heap[0];
+            heap[0] = heap[end];
+            heap[end] = top;
+            siftDown(rows, comparator, heap, 0, end);
+        }
+        return heap;
+    }
+
+    private static <T> int compare(List<? extends T> rows, Comparator<? super T> comparator,
+                                   int a, int b) {
+        int c = comparator.compare(rows.get(a), rows.get(b));
+        return c != 0 ? c : Integer.compare(a, b);
+    }
+
+    private static <T> void siftUp(List<? extends T> rows, Comparator<? super T> comparator,
+                                   int[] heap, int i) {
+        int x = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(rows, comparator, x, heap[parent]) <= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = x;
+    }
+
+    private static <T> void siftDown(List<? extends T> rows, Comparator<? super T> comparator,
+                                     int[] heap, int i, int size) {
+        int x = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compare(rows, comparator, heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (compare(rows, comparator, heap[child], x) <= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+}
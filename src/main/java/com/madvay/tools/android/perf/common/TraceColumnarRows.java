@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+/**
+ * {@link ColumnarRows} whose stack traces are held as a column of trace ids into a
+ * {@link TracePool}.  Transforming or splitting traces only rewrites that column.
+ */
+public abstract class TraceColumnarRows<T extends TraceTransformableRow> extends ColumnarRows<T> {
+
+    protected final TracePool pool;
+    protected final int[] traces;
+
+    protected TraceColumnarRows(TracePool pool, int[] traces) {
+        this.pool = pool;
+        this.traces = traces;
+    }
+
+    public TracePool getPool() {
+        return pool;
+    }
+
+    /**
+     * Whether some trace ids are only found when first asked for, interning into the pool, so
+     * that {@link #getTraceId} and reading the rows are not safe from several threads at once.
+     */
+    public boolean hasLazyTraces() {
+        return false;
+    }
+
+    /** The id in {@link #getPool()} of the row's trace. */
+    public int getTraceId(int row) {
+        return traces[row];
+    }
+
+    @Override
+    public int size() {
+        return traces.length;
+    }
+
+    @Override
+    public abstract TraceColumnarRows<T> select(int[] rows, int count);
+
+    /** Returns the same rows, but with the given trace ids, one per row. */
+    protected abstract TraceColumnarRows<T> withTraces(int[] traces);
+
+    public TraceColumnarRows<T> transformTraces(CompiledTraceTransform transform) {
+        int[] next = new int[traces.length];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = transform.apply(pool, getTraceId(i));
+        }
+        return withTraces(next);
+    }
+
+    /** Replaces each row with one row per frame of its trace, each with a single-frame trace. */
+    public TraceColumnarRows<T> splitTraces() {
+        IntColumn rows = new IntColumn(traces.length);
+        IntColumn split = new IntColumn(traces.length);
+        LongIntMap singleFrameTraces = new LongIntMap();
+        int[] frame = new int[1];
+        for (int i = 0; i < traces.length; i++) {
+            int trace = getTraceId(i);
+            int len = pool.getTraceLength(trace);
+            for (int f = 0; f < len; f++) {
+                frame[0] = pool.getFrameId(trace, f);
+                int t = singleFrameTraces.get(frame[0], -1);
+                if (t < 0) {
+                    t = pool.internTrace(frame, 1);
+                    singleFrameTraces.put(frame[0], t);
+                }
+                rows.add(i);
+                split.add(t);
+            }
+        }
+        return select(rows.toArray(), rows.size()).withTraces(split.toArray());
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns stack frames and stack traces.
+ * <p>
+ * Every distinct {@link StackTraceElement} gets a dense frame id, and every distinct sequence of
+ * frame ids gets a dense trace id, so a trace id is a cheap identity key for a trace.  Trace
+ * id 0 is always the empty trace.  Traces are resolved to {@code List<StackTraceElement>}s
+ * lazily, and at most once each.
+ * <p>
+ * Not thread-safe while frames or traces are being interned.  Once they no longer are, the
+ * getters may be called from several threads at once: {@link #getTrace} still memoizes, but
+ * racing threads only store equal immutable lists into slots which already exist, so at worst
+ * a trace is resolved more than once.
+ */
+public final class TracePool {
+
+    public static final int EMPTY_TRACE = 0;
+
+    private final List<StackTraceElement> frames = new ArrayList<>();
+    private final Map<StackTraceElement, Integer> frameIds = new HashMap<>();
+
+    /** The frames of trace t are {@code traceFrames[traceStart[t]..traceStart[t + 1])}. */
+    private int[] traceFrames = new int[1024];
+    private int[] traceStart = new int[256];
+    private int[] traceHash = new int[256];
+    private int traceCount;
+
+    /** Open-addressed table of (trace id + 1), with 0 marking an empty slot. */
+    private int[] slots = new int[512];
+
+    private final List<List<StackTraceElement>> resolved = new ArrayList<>();
+
+    public TracePool() {
+        traceStart[0] = 0;
+        internTrace(new int[0], 0);
+    }
+
+    public int internFrame(StackTraceElement frame) {
+        Integer id = frameIds.get(frame);
+        if (id == null) {
+            id = frames.size();
+            frames.add(frame);
+            frameIds.put(frame, id);
+        }
+        return id;
+    }
+
+    public StackTraceElement getFrame(int frameId) {
+        return frames.get(frameId);
+    }
+
+    public int frameCount() {
+        return frames.size();
+    }
+
+    public int traceCount() {
+        return traceCount;
+    }
+
+    /**
+     * Interns the trace made up of {@code frameIds[0..len)}.  The array is copied only if the
+     * trace has not been seen before, so callers may reuse it.
+     */
+    public int internTrace(int[] frameIds, int len) {
+        int hash = hash(frameIds, len);
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            int t = slots[i] - 1;
+            if (traceHash[t] == hash && sameFrames(t, frameIds, len)) {
+                return t;
+            }
+            i = (i + 1) & mask;
+        }
+        int t = traceCount++;
+        if (traceCount + 1 > traceStart.length) {
+            traceStart = Arrays.copyOf(traceStart, traceStart.length * 2);
+            traceHash = Arrays.copyOf(traceHash, traceHash.length * 2);
+        }
+        int start = traceStart[t];
+        if (start + len > traceFrames.length) {
+            traceFrames = Arrays.copyOf(traceFrames, Math.max(traceFrames.length * 2, start + len));
+        }
+        System.arraycopy(frameIds, 0, traceFrames, start, len);
+        traceStart[t + 1] = start + len;
+        traceHash[t] = hash;
+        resolved.add(null);
+        slots[i] = t + 1;
+        if (traceCount * 2 > slots.length) {
+            rehash();
+        }
+        return t;
+    }
+
+    public int internTrace(List<StackTraceElement> trace) {
+        int[] ids = new int[trace.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = internFrame(trace.get(i));
+        }
+        return internTrace(ids, ids.length);
+    }
+
+    /**
+     * Interns every frame and trace of {@code other} into this pool.
+     *
+     * @return a map from each of {@code other}'s trace ids to the equivalent trace id in this pool
+     */
+    public int[] internAll(TracePool other) {
+        int[] frameMap = new int[other.frameCount()];
+        for (int i = 0; i < frameMap.length; i++) {
+            frameMap[i] = internFrame(other.getFrame(i));
+        }
+        return internAll(other, frameMap);
+    }
+
+    /**
+     * Interns every trace of {@code other} into this pool, with each of its frame ids {@code f}
+     * replaced by {@code frameMap[f]}.  {@code other} need not have any actual frames, so this
+     * can resolve traces which were interned before their frames were known.
+     *
+     * @return a map from each of {@code other}'s trace ids to the equivalent trace id in this pool
+     */
+    public int[] internAll(TracePool other, int[] frameMap) {
+        int[] traceMap = new int[other.traceCount()];
+        int[] scratch = new int[256];
+        for (int t = 0; t < traceMap.length; t++) {
+            int len = other.getTraceLength(t);
+            if (len > scratch.length) {
+                scratch = new int[len];
+            }
+            for (int i = 0; i < len; i++) {
+                scratch[i] = frameMap[other.getFrameId(t, i)];
+            }
+            traceMap[t] = internTrace(scratch, len);
+        }
+        return traceMap;
+    }
+
+    public int getTraceLength(int traceId) {
+        return traceStart[traceId + 1] - traceStart[traceId];
+    }
+
+    /** The frame id of the {@code i}th frame (0 being the top) of the trace. */
+    public int getFrameId(int traceId, int i) {
+        return traceFrames[traceStart[traceId] + i];
+    }
+
+    /** The frames of the trace, resolved at most once per thread which races on it. */
+    public List<StackTraceElement> getTrace(int traceId) {
+        List<StackTraceElement> ret = resolved.get(traceId);
+        if (ret == null) {
+            StackTraceElement[] arr = new StackTraceElement[getTraceLength(traceId)];
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = frames.get(getFrameId(traceId, i));
+            }
+            ret = ImmutableList.copyOf(arr);
+            resolved.set(traceId, ret);
+        }
+        return ret;
+    }
+
+    /** The top frame of the trace, or null if the trace is empty. */
+    public StackTraceElement getTopFrame(int traceId) {
+        return getTraceLength(traceId) == 0 ? null : frames.get(getFrameId(traceId, 0));
+    }
+
+    private boolean sameFrames(int traceId, int[] frameIds, int len) {
+        int start = traceStart[traceId];
+        if (traceStart[traceId + 1] - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (traceFrames[start + i] != frameIds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(int[] frameIds, int len) {
+        int h = len;
+        for (int i = 0; i < len; i++) {
+            h = h * 31 + frameIds[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int t = 0; t < traceCount; t++) {
+            int i = traceHash[t] & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = t + 1;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package com.madvay.tools.android.perf.common;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
@@ -33,16 +34,33 @@ public abstract class TraceTransformableTable<T extends TraceTransformableRow> e
         super(rows);
     }
 
-    public void transformTraces(final TraceTransformers.TT tt) {
-        setRows(Lists.transform(getRows(), new Function<T, T>() {
+    public void transformTraces(TraceTransformers.TT tt) {
+        transformTraces(ImmutableList.of(tt));
+    }
+
+    /** Applies the transforms, in order, as one {@link CompiledTraceTransform}. */
+    public void transformTraces(List<? extends TraceTransformers.TT> tts) {
+        final CompiledTraceTransform transform = TraceTransformers.compile(tts);
+        if (transform.isIdentity()) {
+            return;
+        }
+        if (getRows() instanceof TraceColumnarRows) {
+            setRows(((TraceColumnarRows<T>) getRows()).transformTraces(transform));
+            return;
+        }
+        setRows(Lists.newArrayList(Lists.transform(getRows(), new Function<T, T>() {
             @Override
             public T apply(T input) {
-                return newRowWithTrace(input, tt.apply(input.getTransformableTrace()));
+                return newRowWithTrace(input, transform);
             }
-        }));
+        })));
     }
 
     public void splitTraces() {
+        if (getRows() instanceof TraceColumnarRows) {
+            setRows(((TraceColumnarRows<T>) getRows()).splitTraces());
+            return;
+        }
         setRows(Lists.newArrayList(
                 Iterables.concat(Iterables.transform(getRows(), new Function<T, Iterable<T>>() {
                     @Override
@@ -57,4 +75,12 @@ public abstract class TraceTransformableTable<T extends TraceTransformableRow> e
     }
 
     protected abstract T newRowWithTrace(T input, List<StackTraceElement> trace);
+
+    /**
+     * Returns a copy of the row with its trace transformed.  Rows whose traces are in a
+     * {@link TracePool} should override this to transform trace ids instead, which is memoized.
+     */
+    protected T newRowWithTrace(T input, CompiledTraceTransform transform) {
+        return newRowWithTrace(input, transform.apply(input.getTransformableTrace()));
+    }
 }
@@ -15,20 +15,19 @@
  *
  */
 
+
 package com.madvay.tools.android.perf.common;
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
- *
+ * Stack trace transforms.  Each one is implemented as an in-place rewrite of an array of frame
+ * ids in a {@link TracePool}, so that a list of them can be {@link #compile compiled} into a
+ * single {@link CompiledTraceTransform}.  Frame predicates are {@link FramePredicate memoized}
+ * per frame id, so are evaluated once per distinct frame rather than per occurrence.
  */
 public class TraceTransformers {
     // Convenience: shorter name.
@@ -36,101 +35,163 @@ public class TraceTransformers {
 
     }
 
-    public static TT prune(final Predicate<StackTraceElement> spec) {
-        return new TT() {
+    /**
+     * Returns a single transform equivalent to applying the given ones in order.  Consecutive
+     * {@link #prune} and {@link #keep} transforms are fused into one pass over the frames.
+     */
+    public static CompiledTraceTransform compile(List<? extends TT> tts) {
+        return new CompiledTraceTransform(tts);
+    }
+
+    public static TT prune(Predicate<StackTraceElement> spec) {
+        final FramePredicate p = new FramePredicate(spec);
+        return new FrameFilter() {
             @Override
-            public List<StackTraceElement> apply(List<StackTraceElement> input) {
-                return Lists.newArrayList(Collections2.filter(input, Predicates.not(spec)));
+            boolean keeps(TracePool pool, int frameId) {
+                return !p.apply(pool, frameId);
             }
         };
     }
 
-    public static TT keep(final Predicate<StackTraceElement> spec) {
-        return new TT() {
+    public static TT keep(Predicate<StackTraceElement> spec) {
+        final FramePredicate p = new FramePredicate(spec);
+        return new FrameFilter() {
             @Override
-            public List<StackTraceElement> apply(List<StackTraceElement> input) {
-                return Lists.newArrayList(Collections2.filter(input, spec));
+            boolean keeps(TracePool pool, int frameId) {
+                return p.apply(pool, frameId);
             }
         };
     }
 
-    public static TT pruneAbove(final Predicate<StackTraceElement> spec) {
-        return new TT() {
+    public static TT pruneAbove(Predicate<StackTraceElement> spec) {
+        final FramePredicate p = new FramePredicate(spec);
+        return new FrameTransform() {
             @Override
-            public List<StackTraceElement> apply(List<StackTraceElement> input) {
-                int matchIdx = Iterables.indexOf(input, spec);
+            int apply(int[] frames, int len, TracePool pool) {
+                int matchIdx = indexOf(p, frames, len, pool);
                 if (matchIdx == -1) {
-                    return Lists.newArrayList();
+                    return 0;
                 }
-                return Lists.newArrayList(Iterables.skip(input, matchIdx));
+                return skip(frames, len, matchIdx);
             }
         };
     }
 
-    public static TT pruneBelow(final Predicate<StackTraceElement> spec) {
-        return new TT() {
+    public static TT pruneBelow(Predicate<StackTraceElement> spec) {
+        final FramePredicate p = new FramePredicate(spec);
+        return new FrameTransform() {
             @Override
-            public List<StackTraceElement> apply(List<StackTraceElement> input) {
-                int last = -1;
-                for (int i = input.size() - 1; i >= 0; i--) {
-                    if (spec.apply(input.get(i))) {
-                        last = i;
-                        break;
-                    }
-                }
-                return Lists.newArrayList(Iterables.limit(input, last + 1));
+            int apply(int[] frames, int len, TracePool pool) {
+                return lastIndexOf(p, frames, len, pool) + 1;
             }
         };
     }
 
-    public static TT keepAbove(final Predicate<StackTraceElement> spec) {
-        return new TT() {
+    public static TT keepAbove(Predicate<StackTraceElement> spec) {
+        final FramePredicate p = new FramePredicate(spec);
+        return new FrameTransform() {
             @Override
-            public List<StackTraceElement> apply(List<StackTraceElement> input) {
-                int matchIdx = Iterables.indexOf(input, spec);
-                if (matchIdx == -1) {
-                    return input;
-                }
-                return Lists.newArrayList(Iterables.limit(input, matchIdx));
+            int apply(int[] frames, int len, TracePool pool) {
+                int matchIdx = indexOf(p, frames, len, pool);
+                return matchIdx == -1 ? len : matchIdx;
             }
         };
     }
 
-    public static TT keepBelow(final Predicate<StackTraceElement> spec) {
-        return new TT() {
+    public static TT keepBelow(Predicate<StackTraceElement> spec) {
+        final FramePredicate p = new FramePredicate(spec);
+        return new FrameTransform() {
             @Override
-            public List<StackTraceElement> apply(List<StackTraceElement> input) {
-                int last = -1;
-                for (int i = input.size() - 1; i >= 0; i--) {
-                    if (spec.apply(input.get(i))) {
-                        last = i;
-                        break;
-                    }
-                }
-                return Lists.newArrayList(Iterables.skip(input, last + 1));
+            int apply(int[] frames, int len, TracePool pool) {
+                return skip(frames, len, lastIndexOf(p, frames, len, pool) + 1);
             }
         };
     }
 
     public static TT pruneRecursion() {
-        return new TT() {
+        return new FrameTransform() {
             @Override
-            public List<StackTraceElement> apply(List<StackTraceElement> input) {
+            int apply(int[] frames, int len, TracePool pool) {
+                // Walk up from the bottom of the stack, packing kept frames against the end.
                 String lastClass = "~", lastMethod = "~";
-                List<StackTraceElement> ret = new ArrayList<>();
-                for (int i = input.size() - 1; i >= 0; i--) {
-                    StackTraceElement ste = input.get(i);
+                int w = len;
+                for (int i = len - 1; i >= 0; i--) {
+                    StackTraceElement ste = pool.getFrame(frames[i]);
                     if (ste.getClassName().equals(lastClass) &&
                         ste.getMethodName().equals(lastMethod)) {
                         continue;
                     }
                     lastClass = ste.getClassName();
                     lastMethod = ste.getMethodName();
-                    ret.add(0, ste);
+                    frames[--w] = frames[i];
                 }
-                return ret;
+                System.arraycopy(frames, w, frames, 0, len - w);
+                return len - w;
             }
         };
     }
 
+    /**
+     * A transform of a trace held as frame ids.  Applying it to a list of frames goes through a
+     * throwaway {@link TracePool}; {@link CompiledTraceTransform} avoids that.
+     */
+    abstract static class FrameTransform implements TT {
+        /**
+         * Rewrites the trace {@code frames[0..len)} in place.
+         *
+         * @return the length of the new trace
+         */
+        abstract int apply(int[] frames, int len, TracePool pool);
+
+        @Override
+        public List<StackTraceElement> apply(List<StackTraceElement> input) {
+            TracePool pool = new TracePool();
+            int[] frames = new int[input.size()];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = pool.internFrame(input.get(i));
+            }
+            int len = apply(frames, frames.length, pool);
+            return pool.getTrace(pool.internTrace(frames, len));
+        }
+    }
+
+    /** A transform which keeps or drops each frame independently of the others. */
+    abstract static class FrameFilter extends FrameTransform {
+        abstract boolean keeps(TracePool pool, int frameId);
+
+        @Override
+        int apply(int[] frames, int len, TracePool pool) {
+            int w = 0;
+            for (int i = 0; i < len; i++) {
+                if (keeps(pool, frames[i])) {
+                    frames[w++] = frames[i];
+                }
+            }
+            return w;
+        }
+    }
+
+    private static int indexOf(FramePredicate spec, int[] frames, int len, TracePool pool) {
+        for (int i = 0; i < len; i++) {
+            if (spec.apply(pool, frames[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(FramePredicate spec, int[] frames, int len, TracePool pool) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (spec.apply(pool, frames[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Drops the first {@code n} frames. */
+    private static int skip(int[] frames, int len, int n) {
+        System.arraycopy(frames, n, frames, 0, len - n);
+        return len - n;
+    }
 }
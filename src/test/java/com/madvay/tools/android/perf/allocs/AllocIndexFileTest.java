@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.allocs;
+
+import com.madvay.tools.android.perf.common.FilterExpression;
+import com.madvay.tools.android.perf.common.StringDictionary;
+import com.madvay.tools.android.perf.common.TracePool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AllocIndexFileTest {
+
+    private static final String[] CLASS_NAMES =
+            {"Ljava/lang/String;", "Lcom/example/Foo;", "[I", "Ljava/util/ArrayList;"};
+    private static final String[] METHOD_NAMES = {"<init>", "bar", "run", "add"};
+    private static final String[] FILE_NAMES = {"Foo.java", "ArrayList.java"};
+
+    /** Each entry is its size, thread, class, then (class, method, file, line) per frame. */
+    private static final int[][] ENTRIES = {
+            {24, 1, 0, 1, 1, 0, 12, 1, 2, 0, 30},
+            {64, 2, 2, 3, 3, 1, -1, 1, 1, 0, 14, 1, 2, 0, 30},
+            {16, 1, 1},
+            {24, 1, 0, 1, 1, 0, 12, 1, 2, 0, 30},
+            {48, 3, 3, 1, 0, 0, -2},
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTripsColumnsPoolAndDictionaries() throws IOException {
+        File capture = writeCapture(tmp.newFile("a.alloc"), 0);
+        AllocColumns parsed = parseWithoutIndex(capture);
+
+        AllocIndexFile.write(capture, parsed);
+        AllocColumns loaded = AllocIndexFile.load(capture, capture.getPath());
+
+        assertNotNull(loaded);
+        assertSameColumns(parsed, loaded);
+        assertEquals(capture.getPath(), loaded.get(0).source);
+    }
+
+    @Test
+    public void staleKeyIsRejectedAndCaptureReparsed() throws IOException {
+        File capture = writeCapture(tmp.newFile("a.alloc"), 0);
+        AllocIndexFile.write(capture, parseWithoutIndex(capture));
+
+        // The same length, but different sizes and a later modification time.
+        writeCapture(capture, 8);
+        assertTrue(capture.setLastModified(capture.lastModified() + 10000));
+        assertNull(AllocIndexFile.load(capture, capture.getPath()));
+
+        AllocColumns reparsed = AllocationsParserAdapter.parse(capture.getPath(), true, false);
+        assertSameColumns(parseWithoutIndex(capture), reparsed);
+        assertEquals(32, reparsed.get(0).bytes);
+        // The index is rewritten for the new capture.
+        AllocationsParserAdapter.writeIndexes(ImmutableList.of(capture.getPath()));
+        assertNotNull(AllocIndexFile.load(capture, capture.getPath()));
+    }
+
+    @Test
+    public void truncatedIndexIsRejectedAndCaptureReparsed() throws IOException {
+        File capture = writeCapture(tmp.newFile("a.alloc"), 0);
+        AllocColumns parsed = parseWithoutIndex(capture);
+        AllocIndexFile.write(capture, parsed);
+
+        File index = AllocIndexFile.indexFor(capture);
+        RandomAccessFile raf = new RandomAccessFile(index, "rw");
+        try {
+            raf.setLength(raf.length() - 7);
+        } finally {
+            raf.close();
+        }
+        try {
+            assertNull(AllocIndexFile.load(capture, capture.getPath()));
+        } catch (IOException | RuntimeException expected) {
+            // Either way, the index is not used.
+        }
+
+        assertSameColumns(parsed, AllocationsParserAdapter.parse(capture.getPath(), true, false));
+        AllocationsParserAdapter.writeIndexes(ImmutableList.of(capture.getPath()));
+        assertSameColumns(parsed, AllocIndexFile.load(capture, capture.getPath()));
+    }
+
+    @Test
+    public void lazyParseLeavesTheIndexToWriteIndexes() throws IOException {
+        File capture = writeCapture(tmp.newFile("a.alloc"), 0);
+
+        AllocColumns parsed = AllocationsParserAdapter.parse(capture.getPath(), true, true);
+
+        assertTrue(parsed.hasLazyTraces());
+        assertFalse(AllocIndexFile.indexFor(capture).exists());
+        AllocationsParserAdapter.writeIndexes(ImmutableList.of(capture.getPath()));
+        assertSameColumns(parseWithoutIndex(capture),
+                AllocIndexFile.load(capture, capture.getPath()));
+    }
+
+    @Test
+    public void filteredParseIsTheFilteredCapture() throws IOException {
+        File capture = writeCapture(tmp.newFile("a.alloc"), 0);
+        HeaderFilter filter = new HeaderFilter(ImmutableList.of(FilterExpression.parse(
+                "size >= 24 && thread != 3")));
+        AllocColumns expected = parseWithoutIndex(capture).filterHeaders(filter);
+
+        AllocColumns cold =
+                AllocationsParserAdapter.parse(capture.getPath(), true, false, filter);
+        AllocationsParserAdapter.writeIndexes(ImmutableList.of(capture.getPath()));
+        AllocColumns warm =
+                AllocationsParserAdapter.parse(capture.getPath(), true, false, filter);
+
+        assertEquals(3, expected.size());
+        assertSameRows(expected, cold);
+        assertSameRows(expected, warm);
+    }
+
+    @Test
+    public void loadKeepsOnlyTheRowsTheFilterAccepts() throws IOException {
+        File capture = writeCapture(tmp.newFile("a.alloc"), 0);
+        AllocColumns parsed = parseWithoutIndex(capture);
+        AllocIndexFile.write(capture, parsed);
+
+        for (String where : ImmutableList.of("size < 30", "id >= 2 && thread == 1",
+                "size > 1000")) {
+            HeaderFilter filter =
+                    new HeaderFilter(ImmutableList.of(FilterExpression.parse(where)));
+            assertSameRows(parsed.filterHeaders(filter),
+                    AllocIndexFile.load(capture, capture.getPath(), filter));
+        }
+    }
+
+    @Test
+    public void scanGivesTheLoadedRowsTwice() throws IOException {
+        File capture = writeCapture(tmp.newFile("a.alloc"), 0);
+        assertNull(AllocIndexFile.scan(capture, capture.getPath(), HeaderFilter.ALL));
+        AllocIndexFile.write(capture, parseWithoutIndex(capture));
+
+        HeaderFilter filter = new HeaderFilter(ImmutableList.of(FilterExpression.parse("id != 1")));
+        Iterable<AllocRow> scanned = AllocIndexFile.scan(capture, capture.getPath(), filter);
+        AllocColumns loaded = AllocIndexFile.load(capture, capture.getPath(), filter);
+
+        assertSameRows(loaded, Lists.newArrayList(scanned));
+        assertSameRows(loaded, Lists.newArrayList(scanned));
+    }
+
+    private static AllocColumns parseWithoutIndex(File capture) {
+        return AllocationsParserAdapter.parse(capture.getPath(), false, false);
+    }
+
+    private static void assertSameRows(List<AllocRow> expected, List<AllocRow> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            AllocRow e = expected.get(i);
+            AllocRow a = actual.get(i);
+            assertEquals(e.id, a.id);
+            assertEquals(e.bytes, a.bytes);
+            assertEquals(e.thread, a.thread);
+            assertEquals(e.allocatedClass, a.allocatedClass);
+            assertEquals(e.getStackTrace(), a.getStackTrace());
+        }
+    }
+
+    private static void assertSameColumns(AllocColumns expected, AllocColumns actual) {
+        assertArrayEquals(expected.getIds(), actual.getIds());
+        assertArrayEquals(expected.getSizes(), actual.getSizes());
+        assertArrayEquals(expected.getThreads(), actual.getThreads());
+        assertArrayEquals(expected.getClasses(), actual.getClasses());
+        assertArrayEquals(expected.getTraces(), actual.getTraces());
+
+        StringDictionary expectedClasses = expected.getClassNames();
+        StringDictionary actualClasses = actual.getClassNames();
+        assertEquals(expectedClasses.size(), actualClasses.size());
+        for (int i = 0; i < expectedClasses.size(); i++) {
+            assertEquals(expectedClasses.get(i), actualClasses.get(i));
+        }
+
+        TracePool expectedPool = expected.getPool();
+        TracePool actualPool = actual.getPool();
+        assertEquals(expectedPool.frameCount(), actualPool.frameCount());
+        for (int i = 0; i < expectedPool.frameCount(); i++) {
+            assertEquals(expectedPool.getFrame(i), actualPool.getFrame(i));
+        }
+        assertEquals(expectedPool.traceCount(), actualPool.traceCount());
+        for (int t = 0; t < expectedPool.traceCount(); t++) {
+            assertEquals(expectedPool.getTrace(t), actualPool.getTrace(t));
+        }
+    }
+
+    /** Writes {@link #ENTRIES} as a DDMS .alloc file, with {@code extraSize} added to each size. */
+    private static File writeCapture(File f, int extraSize) throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream e = new DataOutputStream(entries);
+        for (int[] entry : ENTRIES) {
+            e.writeInt(entry[0] + extraSize);
+            e.writeShort(entry[1]);
+            e.writeShort(entry[2]);
+            e.writeByte((entry.length - 3) / 4);
+            for (int i = 3; i < entry.length; i++) {
+                e.writeShort(entry[i]);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        try {
+            out.writeByte(15);
+            out.writeByte(9);
+            out.writeByte(8);
+            out.writeShort(ENTRIES.length);
+            out.writeInt(15 + entries.size());
+            out.writeShort(CLASS_NAMES.length);
+            out.writeShort(METHOD_NAMES.length);
+            out.writeShort(FILE_NAMES.length);
+            entries.writeTo(out);
+            writeStrings(out, CLASS_NAMES);
+            writeStrings(out, METHOD_NAMES);
+            writeStrings(out, FILE_NAMES);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        for (String s : strings) {
+            out.writeInt(s.length());
+            out.writeChars(s);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class AhoCorasickTest {
+
+    @Test
+    public void findsOverlappingPatterns() {
+        AhoCorasick matcher = new AhoCorasick(ImmutableList.of("he", "she", "his", "hers"));
+
+        assertEquals(bits(0, 1, 3), find(matcher, "ushers"));
+        assertEquals(bits(0), find(matcher, "ahem"));
+        assertEquals(bits(), find(matcher, "hi"));
+    }
+
+    @Test
+    public void findsPatternsWhichAreSuffixesOfOthers() {
+        AhoCorasick matcher = new AhoCorasick(ImmutableList.of("abcd", "bc", "c", "bcd"));
+
+        assertEquals(bits(1, 2), find(matcher, "xabcx"));
+        assertEquals(bits(0, 1, 2, 3), find(matcher, "abcd"));
+    }
+
+    @Test
+    public void emptyPatternIsAlwaysFound() {
+        AhoCorasick matcher = new AhoCorasick(ImmutableList.of("", "x"));
+
+        assertEquals(bits(0), find(matcher, ""));
+        assertEquals(bits(0), find(matcher, "abc"));
+        assertEquals(bits(0, 1), find(matcher, "abx"));
+    }
+
+    @Test
+    public void duplicatePatternsAreEachFound() {
+        AhoCorasick matcher = new AhoCorasick(ImmutableList.of("ab", "ab"));
+
+        assertEquals(bits(0, 1), find(matcher, "cab"));
+    }
+
+    @Test
+    public void charsOutsideTheAlphabetRestartMatching() {
+        AhoCorasick matcher = new AhoCorasick(ImmutableList.of("abc", "\u2028"));
+
+        assertEquals(bits(), find(matcher, "ab\u00e9c"));
+        assertEquals(bits(), find(matcher, "ab\uffffc"));
+        assertEquals(bits(0), find(matcher, "\uffffab\u0000abc"));
+        assertEquals(bits(1), find(matcher, "a\u2028b"));
+    }
+
+    @Test
+    public void agreesWithStringContains() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            ImmutableList.Builder<String> patterns = ImmutableList.builder();
+            int n = 1 + random.nextInt(6);
+            for (int i = 0; i < n; i++) {
+                patterns.add(randomString(random, random.nextInt(4)));
+            }
+            List<String> list = patterns.build();
+            AhoCorasick matcher = new AhoCorasick(list);
+            for (int t = 0; t < 20; t++) {
+                String text = randomString(random, random.nextInt(12));
+                BitSet expected = new BitSet();
+                for (int i = 0; i < list.size(); i++) {
+                    if (text.contains(list.get(i))) {
+                        expected.set(i);
+                    }
+                }
+                assertEquals(list + " in " + text, expected, find(matcher, text));
+            }
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // Mostly from the patterns' alphabet, sometimes not.
+            sb.append("abcab\u00e9".charAt(random.nextInt(6)));
+        }
+        return sb.toString();
+    }
+
+    private static BitSet find(AhoCorasick matcher, String text) {
+        BitSet found = new BitSet();
+        matcher.find(text, found);
+        return found;
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet ret = new BitSet();
+        for (int i : indexes) {
+            ret.set(i);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ColumnSortTest {
+
+    private static final KeyAdapter ADAPTER = new KeyAdapter();
+
+    @Test
+    public void numbersOfMixedSigns() {
+        List<KeyRow> rows = rows(new long[]{5, -1, 0, Long.MIN_VALUE, Long.MAX_VALUE, -300, 256});
+
+        assertArrayEquals(new int[]{3, 5, 1, 2, 0, 6, 4}, sort(rows, "n"));
+        assertArrayEquals(new int[]{4, 6, 0, 2, 1, 5, 3}, sort(rows, "-n"));
+    }
+
+    @Test
+    public void tiesKeepTheirOrder() {
+        List<KeyRow> rows = rows(new long[]{2, 1, 2, 1, 2});
+
+        assertArrayEquals(new int[]{1, 3, 0, 2, 4}, sort(rows, "n"));
+        assertArrayEquals(new int[]{0, 2, 4, 1, 3}, sort(rows, "-n"));
+    }
+
+    @Test
+    public void keysWhichDifferOnlyInOneByte() {
+        // Every byte but the third is the same in every key, so only that one is sorted on.
+        List<KeyRow> rows = rows(new long[]{0x30000L, 0x10000L, 0x20000L, 0x10000L});
+        assertArrayEquals(new int[]{1, 3, 2, 0}, sort(rows, "n"));
+        // And no byte differs.
+        assertArrayEquals(new int[]{0, 1, 2}, sort(rows(new long[]{-7, -7, -7}), "-n"));
+        assertArrayEquals(new int[0], sort(rows(new long[0]), "n"));
+    }
+
+    @Test
+    public void agreesWithAStableComparatorSort() {
+        Random random = new Random(42);
+        String[] words = {"", "a", "ab", "b", "B", "\u00e9", "aa"};
+        List<List<String>> sorts = ImmutableList.<List<String>>of(ImmutableList.of("n"),
+                ImmutableList.of("-n"), ImmutableList.of("s"), ImmutableList.of("-s"),
+                ImmutableList.of("s", "-n"), ImmutableList.of("-n", "s"),
+                ImmutableList.of("-s", "n", "s"));
+        for (int round = 0; round < 200; round++) {
+            int n = random.nextInt(300);
+            List<KeyRow> rows = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                long number;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        number = random.nextInt(5) - 2;
+                        break;
+                    case 1:
+                        number = random.nextLong();
+                        break;
+                    default:
+                        // Wide, but with the low bytes shared.
+                        number = (long) (random.nextInt(7) - 3) << 40;
+                        break;
+                }
+                rows.add(new KeyRow(number, words[random.nextInt(words.length)]));
+            }
+            for (List<String> cols : sorts) {
+                assertArrayEquals(cols + " of " + n + " rows", referenceSort(rows, cols),
+                        ColumnSort.sortedIndexes(rows, ADAPTER, cols));
+            }
+        }
+    }
+
+    private static int[] sort(List<KeyRow> rows, String col) {
+        int[] ret = ColumnSort.sortedIndexes(rows, ADAPTER, ImmutableList.of(col));
+        assertArrayEquals(referenceSort(rows, ImmutableList.of(col)), ret);
+        return ret;
+    }
+
+    /** Sorts indexes with a comparator, which {@link Collections#sort} does stably. */
+    private static int[] referenceSort(final List<KeyRow> rows, final List<String> cols) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            indexes.add(i);
+        }
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                KeyRow a = rows.get(o1);
+                KeyRow b = rows.get(o2);
+                for (String colSpec : cols) {
+                    boolean descending = colSpec.startsWith("-");
+                    int c = colSpec.endsWith("n") ? Long.compare(a.number, b.number) :
+                            a.text.compareTo(b.text);
+                    if (c != 0) {
+                        return descending ? -c : c;
+                    }
+                }
+                return 0;
+            }
+        });
+        int[] ret = new int[indexes.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = indexes.get(i);
+        }
+        return ret;
+    }
+
+    private static List<KeyRow> rows(long[] numbers) {
+        List<KeyRow> ret = new ArrayList<>();
+        for (long number : numbers) {
+            ret.add(new KeyRow(number, ""));
+        }
+        return ret;
+    }
+
+    private static final class KeyRow extends Row {
+        final long number;
+        final String text;
+
+        KeyRow(long number, String text) {
+            this.number = number;
+            this.text = text;
+        }
+    }
+
+    private static final class KeyAdapter extends RowAdapter<KeyRow> {
+        KeyAdapter() {
+            super(ImmutableList.of("n", "s"),
+                    ImmutableList.of(CoerceType.NUMERIC, CoerceType.TEXT));
+        }
+
+        @Override
+        public Object get(KeyRow row, String column) {
+            return column.equals("n") ? row.number : row.text;
+        }
+
+        @Override
+        public long getLong(KeyRow row, int handle) {
+            return row.number;
+        }
+    }
+}
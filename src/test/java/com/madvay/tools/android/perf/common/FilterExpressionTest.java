@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilterExpressionTest {
+
+    @Test
+    public void andBindsTighterThanOr() {
+        assertParses("a == 1 || (b == 2 && c == 3)", "a == 1 || b == 2 && c == 3");
+        assertParses("(a == 1 || b == 2) && c == 3", "(a == 1 || b == 2) && c == 3");
+    }
+
+    @Test
+    public void flattensNestedJunctionsOfTheSameKind() {
+        assertParses("a == 1 && b == 2 && c == 3", "a == 1 && (b == 2 && c == 3)");
+        assertParses("a == 1 || b == 2 || c == 3", "((a == 1) || b == 2) || c == 3");
+    }
+
+    @Test
+    public void parsesEveryOperator() {
+        assertParses("a == 1", "a = 1");
+        assertParses("a == 1 && a != 2 && a < 3 && a <= 4 && a > 5 && a >= 6",
+                "a==1&&a!=2&&a<3&&a<=4&&a>5&&a>=6");
+        assertParses("a ~ x.* && a !~ y && a contains z && !(a contains w)",
+                "a ~ \"x.*\" && a !~ y && a contains z && !(a contains w)");
+    }
+
+    @Test
+    public void pushesNegationsIntoComparisons() {
+        assertParses("a >= 3", "!(a < 3)");
+        assertParses("a < 3", "!!a < 3");
+        assertParses("a != 1 || !(b contains x)", "!(a == 1 && b contains x)");
+        assertParses("a ~ x && (b <= 2 || c contains y)", "!(a !~ x || !(b <= 2 || c contains y))");
+    }
+
+    @Test
+    public void foldsConstants() {
+        assertParses("a == 1", "true && a == 1");
+        assertParses("false", "false && a == 1");
+        assertParses("true", "a == 1 || (b == 2 || true)");
+        assertParses("a == 1", "a == 1 || false");
+        assertParses("false", "!true");
+        assertParses("true", "!(a == 1 && false)");
+    }
+
+    @Test
+    public void quotedStringsAreValues() {
+        assertEquals("x y", comparison("a == \"x y\"").rhs);
+        assertEquals("&&", comparison("a == \"&&\"").rhs);
+        assertEquals("true", comparison("a == \"true\"").rhs);
+        assertEquals("say \"hi\" \\ \\d", comparison("a ~ \"say \\\"hi\\\" \\\\ \\d\"").rhs);
+        assertEquals("", comparison("a contains \"\"").rhs);
+        assertEquals(FilterSpec.FilterType.CONTAINS, comparison("a contains contains").filterType);
+    }
+
+    @Test
+    public void toStringParsesBackToTheSameExpression() {
+        for (String text : ImmutableList.of("a == \"x y\"", "a ~ \"say \\\"hi\\\" \\\\d\"",
+                "!(a contains \"(\")", "a == \"true\" || b != \"\" && c contains \"contains\"")) {
+            String canonical = FilterExpression.parse(text).toString();
+            assertEquals(canonical, FilterExpression.parse(canonical).toString());
+        }
+    }
+
+    @Test
+    public void rejectsMalformedExpressions() {
+        for (String text : ImmutableList.of("", "a", "a ==", "a 1", "(a == 1", "a == 1)",
+                "a == 1 &&", "a & b", "a | b", "\"a\" == 1", "a == \"x", "== 1", "a == ==",
+                "a == 1 b == 2", "()")) {
+            try {
+                FilterExpression.parse(text);
+                fail("Parsed: " + text);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().endsWith(text));
+            }
+        }
+    }
+
+    @Test
+    public void listsConjunctsAndColumns() {
+        assertEquals(2, FilterExpression.parse("a == 1 && (b == 2 || c == 3)").conjuncts().size());
+        assertEquals(1, FilterExpression.parse("a == 1 || b == 2 && c == 3").conjuncts().size());
+        assertEquals(ImmutableSet.of("a", "b", "c"),
+                FilterExpression.parse("a == 1 && !(b == 2 || c == 3)").columns());
+    }
+
+    @Test
+    public void compiledPredicatesTestRows() {
+        Predicate<NamedRow> p = FilterExpression.parse(
+                "size >= 10 && (name ~ \"a.*\" || name contains zz) && name !~ abc")
+                .compile(new NamedAdapter());
+
+        assertTrue(p.apply(new NamedRow("apple", 10)));
+        assertTrue(p.apply(new NamedRow("fizz", 11)));
+        assertTrue(p.apply(new NamedRow("abcd", 12)));
+        assertFalse(p.apply(new NamedRow("abc", 12)));
+        assertFalse(p.apply(new NamedRow("apple", 9)));
+        assertFalse(p.apply(new NamedRow("pear", 100)));
+    }
+
+    @Test
+    public void compiledLiteralRegexesMatchTheWholeValue() {
+        Predicate<NamedRow> p = FilterExpression.parse("name ~ \"a\\.b\"")
+                .compile(new NamedAdapter());
+
+        assertTrue(p.apply(new NamedRow("a.b", 0)));
+        assertFalse(p.apply(new NamedRow("axb", 0)));
+        assertFalse(p.apply(new NamedRow("a.bc", 0)));
+    }
+
+    private static void assertParses(String expected, String text) {
+        assertEquals(text, expected, FilterExpression.parse(text).toString());
+    }
+
+    private static FilterSpec comparison(String text) {
+        return ((FilterExpression.Comparison) FilterExpression.parse(text)).spec;
+    }
+
+    private static final class NamedRow extends Row {
+        final String name;
+        final long size;
+
+        NamedRow(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private static final class NamedAdapter extends RowAdapter<NamedRow> {
+        NamedAdapter() {
+            super(ImmutableList.of("name", "size"),
+                    ImmutableList.of(CoerceType.TEXT, CoerceType.NUMERIC));
+        }
+
+        @Override
+        public Object get(NamedRow row, String column) {
+            return column.equals("name") ? row.name : row.size;
+        }
+    }
+}
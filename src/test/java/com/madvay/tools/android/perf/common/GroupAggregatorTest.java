@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class GroupAggregatorTest {
+
+    private static final SizeAdapter ADAPTER = new SizeAdapter();
+
+    @Test
+    public void countsSumsAndDistinctsPerGroup() {
+        List<SizeRow> rows = ImmutableList.of(new SizeRow(2, "b", 10), new SizeRow(1, "a", 5),
+                new SizeRow(2, "a", 10), new SizeRow(2, "c", 7), new SizeRow(1, "a", 1));
+
+        assertTable(ImmutableList.<Object>of(2L, 1L), new long[][]{{3}, {2}},
+                aggregate(rows, "key", "size", Table.AggregationType.COUNT));
+        assertTable(ImmutableList.<Object>of(2L, 1L), new long[][]{{27}, {6}},
+                aggregate(rows, "key", "size", Table.AggregationType.SUM));
+        assertTable(ImmutableList.<Object>of(2L, 1L), new long[][]{{2}, {2}},
+                aggregate(rows, "key", "size", Table.AggregationType.UNIQUE));
+        assertTable(ImmutableList.<Object>of("b", "a", "c"), new long[][]{{1}, {2}, {1}},
+                aggregate(rows, "name", "key", Table.AggregationType.UNIQUE));
+        assertTable(ImmutableList.<Object>of(2L, 1L), new long[][]{{3}, {1}},
+                aggregate(rows, "key", "name", Table.AggregationType.UNIQUE));
+    }
+
+    @Test
+    public void singleMetricColumnIsNamedWeight() {
+        Table<AggregateRow> table = aggregate(ImmutableList.of(new SizeRow(1, "a", 1)), "name",
+                "size", Table.AggregationType.SUM);
+
+        assertEquals(ImmutableList.of("weight", "group"), table.getAdapter().columns);
+        assertEquals(RowAdapter.CoerceType.TEXT, table.getAdapter().types.get(1));
+    }
+
+    @Test
+    public void agreesWithGroupingInAMap() {
+        List<SizeRow> rows = randomRows(new Random(42), 5000);
+        for (String groupBy : ImmutableList.of("key", "name")) {
+            Map<Object, List<SizeRow>> byGroup = new LinkedHashMap<>();
+            for (SizeRow row : rows) {
+                Object group = ADAPTER.get(row, groupBy);
+                List<SizeRow> members = byGroup.get(group);
+                if (members == null) {
+                    byGroup.put(group, members = new ArrayList<>());
+                }
+                members.add(row);
+            }
+            List<Object> groups = new ArrayList<>(byGroup.keySet());
+            long[][] counts = new long[groups.size()][];
+            long[][] sums = new long[groups.size()][];
+            long[][] uniques = new long[groups.size()][];
+            for (int g = 0; g < groups.size(); g++) {
+                long sum = 0;
+                Set<String> names = new HashSet<>();
+                for (SizeRow row : byGroup.get(groups.get(g))) {
+                    sum += row.size;
+                    names.add(row.name);
+                }
+                counts[g] = new long[]{byGroup.get(groups.get(g)).size()};
+                sums[g] = new long[]{sum};
+                uniques[g] = new long[]{names.size()};
+            }
+
+            assertTable(groups, counts,
+                    aggregate(rows, groupBy, "size", Table.AggregationType.COUNT));
+            assertTable(groups, sums, aggregate(rows, groupBy, "size", Table.AggregationType.SUM));
+            assertTable(groups, uniques,
+                    aggregate(rows, groupBy, "name", Table.AggregationType.UNIQUE));
+        }
+    }
+
+    @Test
+    public void mergeIsTheSameAsOnePass() {
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            List<SizeRow> rows = randomRows(random, 1 + random.nextInt(3000));
+            int split = random.nextInt(rows.size());
+            for (String groupBy : ImmutableList.of("key", "name")) {
+                for (String weight : ImmutableList.of("size", "name")) {
+                    for (Table.AggregationType type : Table.AggregationType.values()) {
+                        if (type == Table.AggregationType.SUM && weight.equals("name")) {
+                            continue;
+                        }
+                        // The halves see groups and text values in different orders, so
+                        // their ids must be remapped.
+                        GroupAggregator<SizeRow> left =
+                                new GroupAggregator<>(ADAPTER, groupBy, weight, type);
+                        GroupAggregator<SizeRow> right =
+                                new GroupAggregator<>(ADAPTER, groupBy, weight, type);
+                        push(left, rows.subList(0, split));
+                        push(right, rows.subList(split, rows.size()));
+                        left.merge(right);
+
+                        assertSameTable(aggregate(rows, groupBy, weight, type), left.toTable());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsOtherAggregations() {
+        new GroupAggregator<>(ADAPTER, "key", "size", Table.AggregationType.SUM).merge(
+                new GroupAggregator<>(ADAPTER, "key", "size", Table.AggregationType.COUNT));
+    }
+
+    @Test
+    public void parallelAcceptAllIsTheSameAsOneThread() {
+        // Enough rows to be split into several tasks.
+        List<SizeRow> rows = randomRows(new Random(11), 200000);
+        Function<RowSink<SizeRow>, RowSink<SizeRow>> nonNegative =
+                new Function<RowSink<SizeRow>, RowSink<SizeRow>>() {
+                    @Override
+                    public RowSink<SizeRow> apply(final RowSink<SizeRow> next) {
+                        return new RowSink<SizeRow>() {
+                            @Override
+                            public void accept(SizeRow row) {
+                                if (row.size >= 0) {
+                                    next.accept(row);
+                                }
+                            }
+                        };
+                    }
+                };
+        for (String groupBy : ImmutableList.of("key", "name")) {
+            for (Table.AggregationType type : Table.AggregationType.values()) {
+                String weight = type == Table.AggregationType.UNIQUE ? "name" : "size";
+                GroupAggregator<SizeRow> one =
+                        new GroupAggregator<>(ADAPTER, groupBy, weight, type);
+                one.acceptAll(rows, 1, nonNegative);
+                for (int threads : new int[]{2, 4, 7}) {
+                    GroupAggregator<SizeRow> many =
+                            new GroupAggregator<>(ADAPTER, groupBy, weight, type);
+                    many.acceptAll(rows, threads, nonNegative);
+                    assertSameTable(one.toTable(), many.toTable());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void computesSeveralMetricsInOnePass() {
+        List<SizeRow> rows = ImmutableList.of(new SizeRow(1, "a", 4), new SizeRow(1, "b", -2),
+                new SizeRow(2, "a", 9), new SizeRow(1, "a", 4), new SizeRow(1, "c", 7));
+        GroupAggregator<SizeRow> agg = new GroupAggregator<>(ADAPTER, "key",
+                ImmutableList.of(Metric.count(), Metric.parse("avg(size)"),
+                        Metric.parse("min(size)"), Metric.parse("max(size)"),
+                        Metric.parse("p50(size)"), Metric.parse("unique(name)")), 0);
+        push(agg, rows);
+
+        Table<AggregateRow> table = agg.toTable();
+        assertEquals(ImmutableList.of("count", "avg(size)", "min(size)", "max(size)",
+                "p50(size)", "unique(name)", "group"), table.getAdapter().columns);
+        // Group 1's sizes are -2, 4, 4 and 7, so its average of 3.25 rounds to 3.
+        assertTable(ImmutableList.<Object>of(1L, 2L),
+                new long[][]{{4, 3, -2, 7, 4, 3}, {1, 9, 9, 9, 9, 1}}, table);
+    }
+
+    @Test
+    public void metricsAgreeWithGroupingInAMapAndMerge() {
+        List<Metric> metrics = ImmutableList.of(Metric.count(), Metric.parse("sum(size)"),
+                Metric.parse("avg(size)"), Metric.parse("min(size)"), Metric.parse("max(size)"),
+                Metric.parse("unique(name)"), Metric.parse("unique(size)"),
+                Metric.parse("p1(size)"), Metric.parse("p50(size)"), Metric.parse("p99(size)"),
+                Metric.parse("p100(size)"));
+        Random random = new Random(3);
+        for (int round = 0; round < 10; round++) {
+            List<SizeRow> rows = randomRows(random, 1 + random.nextInt(4000));
+            Map<Long, List<SizeRow>> byGroup = new LinkedHashMap<>();
+            for (SizeRow row : rows) {
+                List<SizeRow> members = byGroup.get(row.key);
+                if (members == null) {
+                    byGroup.put(row.key, members = new ArrayList<>());
+                }
+                members.add(row);
+            }
+            List<Object> groups = new ArrayList<Object>(byGroup.keySet());
+            long[][] expected = new long[groups.size()][];
+            for (int g = 0; g < groups.size(); g++) {
+                expected[g] = metricsOf(byGroup.get((Long) groups.get(g)));
+            }
+
+            GroupAggregator<SizeRow> all = new GroupAggregator<>(ADAPTER, "key", metrics, 0);
+            push(all, rows);
+            assertTable(groups, expected, all.toTable());
+
+            // Three parts, merged: the histograms and distinct pairs of the later parts are
+            // remapped to the groups and text values of the first.
+            int a = random.nextInt(rows.size());
+            int b = a + random.nextInt(rows.size() - a + 1);
+            GroupAggregator<SizeRow> merged = new GroupAggregator<>(ADAPTER, "key", metrics, 0);
+            push(merged, rows.subList(0, a));
+            for (List<SizeRow> part : ImmutableList.of(rows.subList(a, b),
+                    rows.subList(b, rows.size()))) {
+                GroupAggregator<SizeRow> partial =
+                        new GroupAggregator<>(ADAPTER, "key", metrics, 0);
+                push(partial, part);
+                merged.merge(partial);
+            }
+            assertTable(groups, expected, merged.toTable());
+        }
+    }
+
+    /** The metrics of {@link #metricsAgreeWithGroupingInAMapAndMerge}, computed directly. */
+    private static long[] metricsOf(List<SizeRow> rows) {
+        long[] sizes = new long[rows.size()];
+        Set<String> names = new HashSet<>();
+        Set<Long> distinctSizes = new HashSet<>();
+        long sum = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = rows.get(i).size;
+            sum += sizes[i];
+            names.add(rows.get(i).name);
+            distinctSizes.add(sizes[i]);
+        }
+        Arrays.sort(sizes);
+        int n = sizes.length;
+        return new long[]{n, sum, Math.round((double) sum / n), sizes[0], sizes[n - 1],
+                names.size(), distinctSizes.size(), nearestRank(sizes, 1),
+                nearestRank(sizes, 50), nearestRank(sizes, 99), nearestRank(sizes, 100)};
+    }
+
+    private static long nearestRank(long[] sorted, int percentile) {
+        // The ceiling of percentile% of the values.
+        int rank = (percentile * sorted.length + 99) / 100;
+        return sorted[Math.max(1, rank) - 1];
+    }
+
+    private static Table<AggregateRow> aggregate(List<SizeRow> rows, String groupBy,
+                                                 String weight, Table.AggregationType type) {
+        GroupAggregator<SizeRow> agg = new GroupAggregator<>(ADAPTER, groupBy, weight, type);
+        push(agg, rows);
+        return agg.toTable();
+    }
+
+    private static void push(GroupAggregator<SizeRow> agg, List<SizeRow> rows) {
+        for (SizeRow row : rows) {
+            agg.accept(row);
+        }
+    }
+
+    static void assertSameTable(Table<AggregateRow> expected, Table<AggregateRow> actual) {
+        assertEquals(expected.getAdapter().columns, actual.getAdapter().columns);
+        List<Object> groups = new ArrayList<>();
+        List<AggregateRow> rows = expected.getRows();
+        long[][] metrics = new long[rows.size()][];
+        for (int g = 0; g < rows.size(); g++) {
+            groups.add(rows.get(g).group);
+            metrics[g] = new long[rows.get(g).getMetricCount()];
+            for (int i = 0; i < metrics[g].length; i++) {
+                metrics[g][i] = rows.get(g).getMetric(i);
+            }
+        }
+        assertTable(groups, metrics, actual);
+    }
+
+    /** Asserts the groups, in order, and each group's metrics. */
+    static void assertTable(List<Object> groups, long[][] metrics, Table<AggregateRow> table) {
+        List<AggregateRow> rows = table.getRows();
+        assertEquals(groups.size(), rows.size());
+        for (int g = 0; g < groups.size(); g++) {
+            AggregateRow row = rows.get(g);
+            assertEquals(groups.get(g), row.group);
+            assertEquals(metrics[g].length, row.getMetricCount());
+            for (int i = 0; i < metrics[g].length; i++) {
+                assertEquals("group " + row.group + " metric " + i, metrics[g][i],
+                        row.getMetric(i));
+            }
+        }
+    }
+
+    /** Rows with few distinct keys and names, and sizes of both signs. */
+    static List<SizeRow> randomRows(Random random, int n) {
+        List<SizeRow> ret = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ret.add(new SizeRow(random.nextInt(20), "n" + random.nextInt(50),
+                    random.nextInt(2000) - 100));
+        }
+        return ret;
+    }
+
+    static final class SizeRow extends Row {
+        final long key;
+        final String name;
+        final long size;
+
+        SizeRow(long key, String name, long size) {
+            this.key = key;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    static final class SizeAdapter extends RowAdapter<SizeRow> {
+        SizeAdapter() {
+            super(ImmutableList.of("key", "name", "size"),
+                    ImmutableList.of(CoerceType.NUMERIC, CoerceType.TEXT, CoerceType.NUMERIC));
+        }
+
+        @Override
+        public Object get(SizeRow row, String column) {
+            switch (column) {
+                case "key":
+                    return row.key;
+                case "name":
+                    return row.name;
+                default:
+                    return row.size;
+            }
+        }
+
+        @Override
+        public long getLong(SizeRow row, int handle) {
+            return handle == 0 ? row.key : row.size;
+        }
+    }
+}
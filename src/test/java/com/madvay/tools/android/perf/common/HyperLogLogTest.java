@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void emptySketchEstimatesZero() {
+        assertEquals(0, new HyperLogLog(HyperLogLog.MIN_PRECISION).estimate());
+        assertEquals(0, new HyperLogLog(HyperLogLog.MAX_PRECISION).estimate());
+    }
+
+    @Test
+    public void repeatedHashesCountOnce() {
+        HyperLogLog hll = new HyperLogLog(14);
+        for (int i = 0; i < 10000; i++) {
+            hll.add(HyperLogLog.hash(i % 3));
+        }
+        assertEquals(3, hll.estimate());
+    }
+
+    @Test
+    public void smallCardinalitiesAreNearlyExact() {
+        HyperLogLog hll = new HyperLogLog(14);
+        for (int i = 0; i < 200; i++) {
+            hll.add(HyperLogLog.hash(i));
+        }
+        assertEquals(200, hll.estimate(), 2);
+    }
+
+    @Test
+    public void estimatesAreWithinTheStandardError() {
+        for (int precision : new int[]{8, 12, 16}) {
+            for (int n : new int[]{1000, 50000, 500000}) {
+                HyperLogLog hll = new HyperLogLog(precision);
+                for (int i = 0; i < n; i++) {
+                    hll.add(HyperLogLog.hash(i * 7919L + precision));
+                }
+                // Four standard errors, so that this fails only on a real bias.
+                double bound = 4 * HyperLogLog.standardError(precision) * n;
+                assertEquals("precision " + precision + ", " + n + " values", n,
+                        hll.estimate(), bound);
+            }
+        }
+    }
+
+    @Test
+    public void estimatesDistinctStrings() {
+        HyperLogLog hll = new HyperLogLog(14);
+        for (int i = 0; i < 100000; i++) {
+            hll.add(HyperLogLog.hash("java.lang.String#" + (i % 20000)));
+        }
+        assertEquals(20000, hll.estimate(), 4 * HyperLogLog.standardError(14) * 20000);
+    }
+
+    @Test
+    public void mergeIsTheSameAsAddingEverything() {
+        HyperLogLog all = new HyperLogLog(12);
+        HyperLogLog left = new HyperLogLog(12);
+        HyperLogLog right = new HyperLogLog(12);
+        for (int i = 0; i < 30000; i++) {
+            long hash = HyperLogLog.hash(i);
+            all.add(hash);
+            // Overlapping halves.
+            if (i < 20000) {
+                left.add(hash);
+            }
+            if (i >= 10000) {
+                right.add(hash);
+            }
+        }
+        left.merge(right);
+        assertEquals(all.estimate(), left.estimate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsOtherPrecisions() {
+        new HyperLogLog(12).merge(new HyperLogLog(13));
+    }
+
+    @Test
+    public void precisionIsBounded() {
+        HyperLogLog.checkPrecision(HyperLogLog.MIN_PRECISION);
+        HyperLogLog.checkPrecision(HyperLogLog.MAX_PRECISION);
+        for (int precision : new int[]{0, HyperLogLog.MIN_PRECISION - 1,
+                HyperLogLog.MAX_PRECISION + 1}) {
+            try {
+                new HyperLogLog(precision);
+                fail("Accepted precision " + precision);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage().endsWith(": " + precision));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricTest {
+
+    @Test
+    public void parsesEveryKind() {
+        assertParses(Metric.Kind.COUNT, null, 0, "count");
+        assertParses(Metric.Kind.SUM, "size", 0, "sum(size)");
+        assertParses(Metric.Kind.AVG, "size", 0, "avg(size)");
+        assertParses(Metric.Kind.MIN, "id", 0, "min(id)");
+        assertParses(Metric.Kind.MAX, "thread", 0, "max(thread)");
+        assertParses(Metric.Kind.UNIQUE, "allocated", 0, "unique(allocated)");
+        assertParses(Metric.Kind.PERCENTILE, "size", 1, "p1(size)");
+        assertParses(Metric.Kind.PERCENTILE, "size", 99, "p99(size)");
+        assertParses(Metric.Kind.PERCENTILE, "size", 100, "p100(size)");
+    }
+
+    @Test
+    public void percentilesAreCanonicalized() {
+        assertEquals("p5(size)", Metric.parse("p05(size)").toString());
+        assertEquals(Metric.parse("p5(size)"), Metric.parse("p005(size)"));
+        assertEquals(Metric.parse("p5(size)").hashCode(), Metric.parse("p05(size)").hashCode());
+    }
+
+    @Test
+    public void rejectsMalformedMetrics() {
+        for (String spec : ImmutableList.of("", "Count", "count()", "count(size)", "sum", "sum()",
+                "sum(size", "sum(a.b)", "sum(size) ", "median(size)", "p0(size)", "p101(size)",
+                "p1000(size)", "p(size)", "p-1(size)", "pp1(size)")) {
+            try {
+                Metric.parse(spec);
+                fail("Parsed: " + spec);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().startsWith("Bad "));
+            }
+        }
+    }
+
+    @Test
+    public void ofAggregationType() {
+        assertEquals(Metric.count(), Metric.of(Table.AggregationType.COUNT, "size"));
+        assertEquals(Metric.parse("sum(size)"), Metric.of(Table.AggregationType.SUM, "size"));
+        assertEquals(Metric.parse("unique(size)"),
+                Metric.of(Table.AggregationType.UNIQUE, "size"));
+    }
+
+    private static void assertParses(Metric.Kind kind, String column, int percentile,
+                                     String spec) {
+        Metric metric = Metric.parse(spec);
+        assertEquals(kind, metric.kind);
+        if (column == null) {
+            assertNull(metric.column);
+        } else {
+            assertEquals(column, metric.column);
+        }
+        assertEquals(percentile, metric.percentile);
+        assertEquals(spec, metric.toString());
+        assertEquals(metric, Metric.parse(metric.toString()));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReservoirSamplerTest {
+
+    @Test
+    public void keepsEveryRowWhileNotFull() {
+        ReservoirSampler<IdRow> sampler = new ReservoirSampler<>(10, 1);
+        List<IdRow> rows = push(sampler, rows(7, 1));
+
+        assertArrayEquals(new long[]{0, 1, 2, 3, 4, 5, 6}, sampler.getPositions());
+        assertEquals(rows, sampler.getSample());
+    }
+
+    @Test
+    public void emptySample() {
+        ReservoirSampler<IdRow> sampler = new ReservoirSampler<>(0, 1);
+        push(sampler, rows(100, 1));
+
+        assertEquals(0, sampler.getPositions().length);
+        assertTrue(sampler.getSample().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeSizes() {
+        new ReservoirSampler<IdRow>(-1, 1);
+    }
+
+    @Test
+    public void keepsExactlySizeDistinctRowsInOrder() {
+        for (int n : new int[]{10, 11, 100, 100000}) {
+            ReservoirSampler<IdRow> sampler = new ReservoirSampler<>(10, 5);
+            List<IdRow> rows = push(sampler, rows(n, 1));
+
+            long[] positions = sampler.getPositions();
+            List<IdRow> sample = sampler.getSample();
+            assertEquals(10, positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                assertTrue(positions[i] >= 0 && positions[i] < n);
+                assertTrue(i == 0 || positions[i - 1] < positions[i]);
+                assertEquals(rows.get((int) positions[i]), sample.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void sameSeedSameSample() {
+        long[] first = sample(1000, 20, 99);
+
+        assertArrayEquals(first, sample(1000, 20, 99));
+        assertFalse(Arrays.equals(first, sample(1000, 20, 100)));
+    }
+
+    @Test
+    public void everyPositionIsAboutEquallyLikely() {
+        int n = 100;
+        int size = 10;
+        int trials = 4000;
+        int[] counts = new int[n];
+        for (int seed = 0; seed < trials; seed++) {
+            for (long position : sample(n, size, seed)) {
+                counts[(int) position]++;
+            }
+        }
+        // Each is expected trials * size / n = 400 times, with a standard deviation of 19;
+        // rows late in the input are only reached through skips.
+        for (int i = 0; i < n; i++) {
+            assertEquals("position " + i, 400, counts[i], 100);
+        }
+    }
+
+    @Test
+    public void stratifiesByNumericColumn() {
+        ReservoirSampler<IdRow> sampler = new ReservoirSampler<>(5, 3, new IdAdapter(), "group");
+        // Groups 0, 1 and 2 have 3000, 3000 and 3 rows; group 3 has 1.
+        List<IdRow> rows = rows(6000, 2);
+        for (int i = 0; i < 3; i++) {
+            rows.add(new IdRow(rows.size(), 2));
+        }
+        rows.add(new IdRow(rows.size(), 3));
+        push(sampler, rows);
+
+        Map<Long, Integer> perGroup = countPerGroup(sampler.getSample());
+        assertEquals(5, (int) perGroup.get(0L));
+        assertEquals(5, (int) perGroup.get(1L));
+        assertEquals(3, (int) perGroup.get(2L));
+        assertEquals(1, (int) perGroup.get(3L));
+        assertEquals(14, sampler.getPositions().length);
+    }
+
+    @Test
+    public void stratifiesByTextColumn() {
+        ReservoirSampler<IdRow> sampler = new ReservoirSampler<>(4, 3, new IdAdapter(), "name");
+        push(sampler, rows(1000, 3));
+
+        List<IdRow> sample = sampler.getSample();
+        Map<Long, Integer> perGroup = countPerGroup(sample);
+        assertEquals(ImmutableList.of(0L, 1L, 2L), ImmutableList.copyOf(perGroup.keySet()));
+        for (int count : perGroup.values()) {
+            assertEquals(4, count);
+        }
+        for (int i = 1; i < sample.size(); i++) {
+            assertTrue(sample.get(i - 1).id < sample.get(i).id);
+        }
+    }
+
+    private static long[] sample(int n, int size, long seed) {
+        ReservoirSampler<IdRow> sampler = new ReservoirSampler<>(size, seed);
+        push(sampler, rows(n, 1));
+        return sampler.getPositions();
+    }
+
+    private static List<IdRow> push(ReservoirSampler<IdRow> sampler, List<IdRow> rows) {
+        for (IdRow row : rows) {
+            sampler.accept(row);
+        }
+        return rows;
+    }
+
+    /** Rows with ids 0 to n - 1, in groups by id modulo {@code groups}. */
+    private static List<IdRow> rows(int n, int groups) {
+        List<IdRow> ret = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ret.add(new IdRow(i, i % groups));
+        }
+        return ret;
+    }
+
+    private static Map<Long, Integer> countPerGroup(List<IdRow> rows) {
+        Map<Long, Integer> ret = new TreeMap<>();
+        for (IdRow row : rows) {
+            Integer count = ret.get(row.group);
+            ret.put(row.group, count == null ? 1 : count + 1);
+        }
+        return ret;
+    }
+
+    private static final class IdRow extends Row {
+        final long id;
+        final long group;
+
+        IdRow(long id, long group) {
+            this.id = id;
+            this.group = group;
+        }
+    }
+
+    private static final class IdAdapter extends RowAdapter<IdRow> {
+        IdAdapter() {
+            super(ImmutableList.of("id", "group", "name"),
+                    ImmutableList.of(CoerceType.NUMERIC, CoerceType.NUMERIC, CoerceType.TEXT));
+        }
+
+        @Override
+        public Object get(IdRow row, String column) {
+            switch (column) {
+                case "id":
+                    return row.id;
+                case "group":
+                    return row.group;
+                default:
+                    return "group " + row.group;
+            }
+        }
+
+        @Override
+        public long getLong(IdRow row, int handle) {
+            return handle == 0 ? row.id : row.group;
+        }
+    }
+}
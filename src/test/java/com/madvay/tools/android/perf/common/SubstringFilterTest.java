@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SubstringFilterTest {
+
+    private static final List<String> VALUES = ImmutableList.of("", "foo", "bar", "foobar",
+            "a.b", "axb", "xa.bx", "foo\nbar", "a.b\r", "\u0085a.b", "foo\u2028", "\u2029bar",
+            "foo.bar.baz");
+
+    @Test
+    public void conjunctionWithNegatedTests() {
+        SubstringFilter<TextRow> filter = filter(true,
+                spec(FilterSpec.FilterType.CONTAINS, "foo"),
+                spec(FilterSpec.FilterType.NOT_CONTAINS, "bar"));
+
+        assertTrue(filter.apply(new TextRow("food")));
+        assertFalse(filter.apply(new TextRow("foobar")));
+        assertFalse(filter.apply(new TextRow("bar")));
+        assertFalse(filter.apply(new TextRow("")));
+    }
+
+    @Test
+    public void disjunctionWithNegatedTests() {
+        SubstringFilter<TextRow> filter = filter(false,
+                spec(FilterSpec.FilterType.NOT_CONTAINS, "foo"),
+                spec(FilterSpec.FilterType.CONTAINS, "bar"));
+
+        assertTrue(filter.apply(new TextRow("")));
+        assertTrue(filter.apply(new TextRow("foobar")));
+        assertTrue(filter.apply(new TextRow("baz")));
+        assertFalse(filter.apply(new TextRow("food")));
+    }
+
+    @Test
+    public void onlyRegexesOfALiteralBetweenWildcardsAreSubstrings() {
+        assertEquals("a.b", SubstringFilter.substringOf(
+                spec(FilterSpec.FilterType.RE_MATCH, ".*a\\.b.*")));
+        assertEquals("", SubstringFilter.substringOf(
+                spec(FilterSpec.FilterType.NOT_RE_MATCH, ".*.*")));
+        assertNull(SubstringFilter.substringOf(spec(FilterSpec.FilterType.RE_MATCH, ".*a.b.*")));
+        assertNull(SubstringFilter.substringOf(spec(FilterSpec.FilterType.RE_MATCH, "a\\.b.*")));
+        assertNull(SubstringFilter.substringOf(spec(FilterSpec.FilterType.RE_MATCH, ".*\\d.*")));
+        assertNull(SubstringFilter.substringOf(spec(FilterSpec.FilterType.EQUALS, "a")));
+    }
+
+    @Test
+    public void foldedRegexesAgreeWithPatternMatches() {
+        for (String regex : ImmutableList.of(".*a\\.b.*", ".*foo.*", ".*.*", ".*o\\.b.*")) {
+            for (FilterSpec.FilterType type : ImmutableList.of(FilterSpec.FilterType.RE_MATCH,
+                    FilterSpec.FilterType.NOT_RE_MATCH)) {
+                SubstringFilter<TextRow> filter = filter(true, spec(type, regex));
+                for (String value : VALUES) {
+                    boolean expected = Pattern.matches(regex, value) ==
+                                       (type == FilterSpec.FilterType.RE_MATCH);
+                    assertEquals(type + " " + regex + " on " + escape(value), expected,
+                            filter.apply(new TextRow(value)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void combinationsAgreeWithTestingEachSpec() {
+        List<FilterSpec> specs = ImmutableList.of(
+                spec(FilterSpec.FilterType.CONTAINS, "foo"),
+                spec(FilterSpec.FilterType.NOT_CONTAINS, "bar"),
+                spec(FilterSpec.FilterType.RE_MATCH, ".*a\\.b.*"),
+                spec(FilterSpec.FilterType.NOT_RE_MATCH, ".*o\\.b.*"));
+        // Every non-empty subset of the specs, conjoined and disjoined.
+        for (int mask = 1; mask < 1 << specs.size(); mask++) {
+            ImmutableList.Builder<FilterSpec> subset = ImmutableList.builder();
+            for (int i = 0; i < specs.size(); i++) {
+                if ((mask & 1 << i) != 0) {
+                    subset.add(specs.get(i));
+                }
+            }
+            for (boolean and : new boolean[]{true, false}) {
+                List<FilterSpec> chosen = subset.build();
+                SubstringFilter<TextRow> filter =
+                        new SubstringFilter<>(new TextAdapter(), "text", and, chosen);
+                for (String value : VALUES) {
+                    boolean expected = and;
+                    for (FilterSpec spec : chosen) {
+                        if (matches(spec, value) != and) {
+                            expected = !and;
+                            break;
+                        }
+                    }
+                    TextRow row = new TextRow(value);
+                    String message = (and ? "all of " : "any of ") + mask + " on " + escape(value);
+                    assertEquals(message, expected, filter.apply(row));
+                    // Again, from the memo.
+                    assertEquals(message, expected, filter.apply(row));
+                }
+            }
+        }
+    }
+
+    private static boolean matches(FilterSpec spec, String value) {
+        switch (spec.filterType) {
+            case CONTAINS:
+                return value.contains(spec.rhs);
+            case NOT_CONTAINS:
+                return !value.contains(spec.rhs);
+            case RE_MATCH:
+                return Pattern.matches(spec.rhs, value);
+            case NOT_RE_MATCH:
+                return !Pattern.matches(spec.rhs, value);
+            default:
+                throw new IllegalArgumentException("Bad filterType: " + spec.filterType);
+        }
+    }
+
+    private static SubstringFilter<TextRow> filter(boolean and, FilterSpec... specs) {
+        return new SubstringFilter<>(new TextAdapter(), "text", and, ImmutableList.copyOf(specs));
+    }
+
+    private static FilterSpec spec(FilterSpec.FilterType type, String rhs) {
+        return new FilterSpec("text", type, rhs);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(c < ' ' || c > '~' ? String.format("\\u%04x", (int) c) : c);
+        }
+        return sb.toString();
+    }
+
+    private static final class TextRow extends Row {
+        final String text;
+
+        TextRow(String text) {
+            this.text = text;
+        }
+    }
+
+    /** A single text column, keyed by the identity of the string, so results are memoized. */
+    private static final class TextAdapter extends RowAdapter<TextRow> {
+        TextAdapter() {
+            super(ImmutableList.of("text"), ImmutableList.of(CoerceType.TEXT));
+        }
+
+        @Override
+        public Object get(TextRow row, String column) {
+            return row.text;
+        }
+
+        @Override
+        public Object getValueKey(TextRow row, int handle) {
+            return row.text;
+        }
+    }
+}
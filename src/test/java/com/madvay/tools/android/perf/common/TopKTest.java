@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 by Advay Mengle.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.madvay.tools.android.perf.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TopKTest {
+
+    @Test
+    public void tiesAreBrokenByIndex() {
+        List<Integer> rows = ImmutableList.of(3, 1, 2, 1, 3, 1, 2);
+
+        assertArrayEquals(new int[]{1, 3, 5}, TopK.leastIndexes(rows, Ordering.natural(), 3));
+        assertArrayEquals(new int[]{1, 3, 5, 2}, TopK.leastIndexes(rows, Ordering.natural(), 4));
+        assertArrayEquals(new int[]{0, 4, 2, 6},
+                TopK.leastIndexes(rows, Ordering.natural().reverse(), 4));
+    }
+
+    @Test
+    public void kOutsideTheRows() {
+        List<Integer> rows = ImmutableList.of(2, 1, 2);
+
+        assertArrayEquals(new int[0], TopK.leastIndexes(rows, Ordering.natural(), 0));
+        assertArrayEquals(new int[]{1, 0, 2}, TopK.leastIndexes(rows, Ordering.natural(), 10));
+        assertArrayEquals(new int[0],
+                TopK.leastIndexes(ImmutableList.<Integer>of(), Ordering.natural(), 5));
+    }
+
+    @Test
+    public void agreesWithTheHeadOfAStableSort() {
+        Random random = new Random(42);
+        for (int round = 0; round < 300; round++) {
+            int n = random.nextInt(200);
+            // Few distinct values, so most rows tie with others.
+            int range = 1 + random.nextInt(10);
+            List<Integer> rows = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                rows.add(random.nextInt(range));
+            }
+            Ordering<Integer> comparator = Ordering.natural();
+            if (random.nextBoolean()) {
+                comparator = comparator.reverse();
+            }
+            int k = random.nextInt(n + 5);
+            int[] expected = stableSortedIndexes(rows, comparator);
+            assertArrayEquals(rows + " k=" + k,
+                    Arrays.copyOf(expected, Math.min(k, n)),
+                    TopK.leastIndexes(rows, comparator, k));
+        }
+    }
+
+    @Test
+    public void tableLimitIsTheHeadOfTheFullSort() {
+        Random random = new Random(7);
+        List<Pair> rows = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            rows.add(new Pair(random.nextInt(5), random.nextInt(3)));
+        }
+        for (List<String> cols : ImmutableList.of(ImmutableList.of("a"),
+                ImmutableList.of("-a", "b"), ImmutableList.of("b", "-a"))) {
+            PairTable sorted = new PairTable(rows);
+            sorted.sortOn(cols);
+            for (int limit : new int[]{0, 1, 17, 499}) {
+                PairTable limited = new PairTable(rows);
+                limited.sortOn(cols, limit);
+                assertEquals(cols + " limit " + limit,
+                        sorted.getRows().subList(0, limit), limited.getRows());
+            }
+        }
+    }
+
+    private static <T> int[] stableSortedIndexes(final List<T> rows,
+                                                 final Comparator<? super T> comparator) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            indexes.add(i);
+        }
+        // Collections.sort is stable.
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return comparator.compare(rows.get(o1), rows.get(o2));
+            }
+        });
+        int[] ret = new int[indexes.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = indexes.get(i);
+        }
+        return ret;
+    }
+
+    private static final class Pair extends Row {
+        final long a;
+        final long b;
+
+        Pair(long a, long b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    private static final class PairTable extends Table<Pair> {
+        PairTable(List<Pair> rows) {
+            super(new ArrayList<>(rows));
+        }
+
+        @Override
+        public RowAdapter<Pair> getAdapter() {
+            return new RowAdapter<Pair>(ImmutableList.of("a", "b"),
+                    ImmutableList.of(RowAdapter.CoerceType.NUMERIC,
+                            RowAdapter.CoerceType.NUMERIC)) {
+                @Override
+                public Object get(Pair row, String column) {
+                    return column.equals("a") ? row.a : row.b;
+                }
+            };
+        }
+    }
+}